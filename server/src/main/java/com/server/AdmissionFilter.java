@@ -0,0 +1,130 @@
+package com.server;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many requests are handled at the same time. Requests over the limit are answered
+ * right away with 503 and Retry-After instead of waiting for a free slot.
+ * The same filter is shared by all contexts, so the limit is for the whole server.
+ * Contexts with a {@link BulkheadFilter} do not add this filter, the bulkhead admits the request with
+ * {@link #admit(HttpExchange)} before queueing it, so the limit also counts requests waiting in the bulkheads.
+ */
+public class AdmissionFilter extends Filter {
+    private final int limit;
+    private final Semaphore permits;
+    private final long waitMillis;
+    private final int retryAfterSeconds;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param limit how many requests can be handled at the same time
+     * @param waitMillis how long a request can wait for a free slot before it is rejected, 0 to reject right away
+     * @param retryAfterSeconds value of the Retry-After header of rejected requests
+     */
+    AdmissionFilter(int limit, long waitMillis, int retryAfterSeconds) {
+        this.limit = limit;
+        this.waitMillis = waitMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        permits = new Semaphore(limit);
+    }
+
+    /**
+     * creates a filter configured by the server.maxConcurrentRequests, server.admissionWaitMillis
+     * and server.retryAfterSeconds system properties
+     * @param limit default limit, should be sized to the threads that handle the requests
+     * @return
+     */
+    public static AdmissionFilter fromSystemProperties(int limit) {
+        return new AdmissionFilter(Integer.getInteger("server.maxConcurrentRequests", limit),
+                Long.getLong("server.admissionWaitMillis", 0), Integer.getInteger("server.retryAfterSeconds", 1));
+    }
+
+    /**
+     * handles the request if there is a free slot, otherwise sends 503
+     * @param exchange the {@code HttpExchange} to be filtered
+     * @param chain the {@code Chain} which allows the next filter to be invoked
+     * @throws IOException
+     */
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        if (!admit(exchange)) {
+            return;
+        }
+        try {
+            chain.doFilter(exchange);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * takes a slot for a request, or sends 503 if there is none. An admitted request has to call
+     * {@link #release()} once it is handled, wherever that happens.
+     * @param exchange
+     * @return true if the request was admitted
+     * @throws IOException
+     */
+    public boolean admit(HttpExchange exchange) throws IOException {
+        if (!acquire()) {
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_UNAVAILABLE, "Server busy, try again later");
+            return false;
+        }
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * frees the slot of an admitted request
+     */
+    public void release() {
+        permits.release();
+    }
+
+    private boolean acquire() {
+        if (waitMillis <= 0) {
+            return permits.tryAcquire();
+        }
+        try {
+            return permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Limits concurrent requests to " + limit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * gets how many requests are being handled right now
+     * @return
+     */
+    public int getInFlight() {
+        return limit - permits.availablePermits();
+    }
+
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,206 @@
+package com.server;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves the requests of one context to threads of its own, so slow requests of one context
+ * (e.g. password hashing on /registration) can only fill their own slots and not the threads of the others.
+ * Authentication and the handler both run there.
+ * <p>
+ * A request is first admitted by the {@link AdmissionFilter} shared by all contexts, and then has to get one of the
+ * bulkhead's slots: threads + queueSize requests can be in the bulkhead at once, threads of them running and the
+ * rest waiting. A request that gets no admission or no slot is answered with 503 right away, so nothing queues
+ * past either limit. The admission permit and the slot are held until the handler is done.
+ * <p>
+ * With virtual threads (server.executor=virtual) every request gets a thread of its own and a semaphore lets only
+ * the configured amount of them run at a time, the waiting ones are parked virtual threads.
+ * Otherwise, and on Java versions before 21, the bulkhead is a pool of that many platform threads.
+ */
+public class BulkheadFilter extends Filter {
+    private final String name;
+    private final int threads;
+    private final int capacity;
+    private final ExecutorService executor;
+    // one permit per request in the bulkhead, running or waiting
+    private final Semaphore slots;
+    // one permit per running request
+    private final Semaphore running;
+    private final AdmissionFilter admission;
+    private final int retryAfterSeconds;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param name name of the context, used in thread names and stats
+     * @param threads how many requests run at the same time
+     * @param queueSize how many requests can wait for a thread
+     * @param virtual true to run each request on its own virtual thread if the JVM has them,
+     *                false for a pool of platform threads
+     * @param admission the server wide limit checked before a request is queued
+     * @param retryAfterSeconds value of the Retry-After header of rejected requests
+     */
+    BulkheadFilter(String name, int threads, int queueSize, boolean virtual, AdmissionFilter admission, int retryAfterSeconds) {
+        this.name = name;
+        this.threads = threads;
+        this.capacity = threads + queueSize;
+        this.admission = admission;
+        this.retryAfterSeconds = retryAfterSeconds;
+        slots = new Semaphore(capacity);
+        running = new Semaphore(threads);
+        ExecutorService virtualThreads = virtual ? Server.newVirtualThreadExecutor() : null;
+        if (virtualThreads != null) {
+            executor = virtualThreads;
+        } else {
+            AtomicInteger threadCount = new AtomicInteger();
+            // the queue is bounded by the slots
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "bulkhead-" + name + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+    }
+
+    /**
+     * gets the amount of threads of a bulkhead, configured by the bulkhead.name.threads system property
+     * @param name name of the context
+     * @param threads default amount of threads
+     * @return
+     */
+    public static int threadsFromSystemProperties(String name, int threads) {
+        return Integer.getInteger("bulkhead." + name + ".threads", threads);
+    }
+
+    /**
+     * creates a bulkhead configured by the bulkhead.name.threads, bulkhead.name.queueSize and server.executor
+     * system properties
+     * @param name name of the context
+     * @param threads default amount of threads
+     * @param queueSize default queue size
+     * @param admission
+     * @return
+     */
+    public static BulkheadFilter fromSystemProperties(String name, int threads, int queueSize, AdmissionFilter admission) {
+        return new BulkheadFilter(name, threadsFromSystemProperties(name, threads),
+                Integer.getInteger("bulkhead." + name + ".queueSize", queueSize),
+                "virtual".equals(System.getProperty("server.executor")), admission,
+                Integer.getInteger("server.retryAfterSeconds", 1));
+    }
+
+    /**
+     * queues the rest of the request handling to the bulkhead, or sends 503 if the server or the bulkhead is full
+     * @param exchange the {@code HttpExchange} to be filtered
+     * @param chain the {@code Chain} which allows the next filter to be invoked
+     * @throws IOException
+     */
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        if (!admission.admit(exchange)) {
+            return;
+        }
+        if (!slots.tryAcquire()) {
+            admission.release();
+            reject(exchange);
+            return;
+        }
+        try {
+            executor.execute(() -> handle(exchange, chain));
+        } catch (RejectedExecutionException e) {
+            // closed
+            slots.release();
+            admission.release();
+            reject(exchange);
+        }
+    }
+
+    private void handle(HttpExchange exchange, Chain chain) {
+        running.acquireUninterruptibly();
+        try {
+            chain.doFilter(exchange);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error handling request to " + exchange.getRequestURI().getPath());
+            e.printStackTrace();
+            exchange.close();
+        } finally {
+            running.release();
+            slots.release();
+            admission.release();
+            completed.incrementAndGet();
+        }
+    }
+
+    private void reject(HttpExchange exchange) throws IOException {
+        rejected.incrementAndGet();
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+        Server.sendResponse(exchange, HttpURLConnection.HTTP_UNAVAILABLE, "Server busy, try again later");
+    }
+
+    @Override
+    public String description() {
+        return "Runs requests of " + name + " in their own bulkhead";
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * gets how many requests are running in the bulkhead
+     * @return
+     */
+    public int getActive() {
+        return threads - running.availablePermits();
+    }
+
+    /**
+     * gets how many requests are waiting for a thread
+     * @return
+     */
+    public int getQueueDepth() {
+        return Math.max(0, capacity - slots.availablePermits() - getActive());
+    }
+
+    /**
+     * adds the bulkhead's queue depth, active threads and request counts to the stats
+     * @param stats
+     */
+    public void registerStats(StatsHandler stats) {
+        String prefix = "bulkhead." + name + ".";
+        stats.register(prefix + "threads", this::getThreads);
+        stats.register(prefix + "active", this::getActive);
+        stats.register(prefix + "queueDepth", this::getQueueDepth);
+        stats.register(prefix + "completed", completed::get);
+        stats.register(prefix + "rejected", rejected::get);
+    }
+
+    /**
+     * stops taking new requests, the ones already queued are still handled
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * waits for the requests that were in the bulkhead when it was closed to be handled
+     * @param timeoutMillis
+     * @return false if some were still running when the time ran out
+     * @throws InterruptedException
+     */
+    public boolean awaitClosed(long timeoutMillis) throws InterruptedException {
+        return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
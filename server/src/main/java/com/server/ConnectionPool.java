@@ -0,0 +1,166 @@
+package com.server;
+
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connections to the SQLite database: a pool of read only connections and one writer connection.
+ * The database is put into WAL mode so readers never wait for the writer and the other way around.
+ * SQLite only allows one writer at a time anyway, so writes are serialized here instead of in the database.
+ */
+public class ConnectionPool {
+    private static final int BUSY_TIMEOUT_MILLIS = 5000;
+    private static final long BORROW_TIMEOUT_SECONDS = 30;
+
+    private final ArrayList<Connection> connections = new ArrayList<>();
+    private final BlockingQueue<DSLContext> readers;
+    private final DSLContext writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final IdentityHashMap<DSLContext, StatementCache> statements = new IdentityHashMap<>();
+    // read connection held by each thread, so nested reads (e.g. while streaming a cursor) reuse it
+    private final ThreadLocal<BorrowedReader> borrowed = new ThreadLocal<>();
+
+    private static class BorrowedReader {
+        private final DSLContext reader;
+        private int holds = 1;
+
+        BorrowedReader(DSLContext reader) {
+            this.reader = reader;
+        }
+    }
+
+    /**
+     * opens the writer and the read connections, creating the database file if it does not exist
+     * @param database JDBC url of the database
+     * @param readerCount amount of read connections
+     * @throws SQLException
+     */
+    ConnectionPool(String database, int readerCount) throws SQLException {
+        try {
+            Connection writeConnection = openConnection(database);
+            execute(writeConnection, "PRAGMA journal_mode=WAL");
+            // in WAL mode NORMAL is still safe against corruption and skips the fsync on every commit
+            execute(writeConnection, "PRAGMA synchronous=NORMAL");
+            writer = DSL.using(writeConnection, SQLDialect.SQLITE);
+            statements.put(writer, new StatementCache(writeConnection));
+
+            readers = new ArrayBlockingQueue<>(readerCount);
+            for (int i = 0; i < readerCount; i++) {
+                Connection readConnection = openConnection(database);
+                execute(readConnection, "PRAGMA query_only=true");
+                DSLContext reader = DSL.using(readConnection, SQLDialect.SQLITE);
+                statements.put(reader, new StatementCache(readConnection));
+                readers.add(reader);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private Connection openConnection(String database) throws SQLException {
+        Connection connection = DriverManager.getConnection(database);
+        connections.add(connection);
+        execute(connection, "PRAGMA busy_timeout=" + BUSY_TIMEOUT_MILLIS);
+        return connection;
+    }
+
+    private void execute(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    /**
+     * takes a read connection from the pool, waiting for one to be released if all are in use.
+     * A thread that already has one gets the same connection again.
+     * It has to be given back with {@link #releaseReader(DSLContext)}.
+     * @return
+     * @throws DataAccessException if no connection was released in time
+     */
+    public DSLContext borrowReader() throws DataAccessException {
+        BorrowedReader held = borrowed.get();
+        if (held != null) {
+            held.holds++;
+            return held.reader;
+        }
+        try {
+            DSLContext reader = readers.poll(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (reader == null) {
+                throw new DataAccessException("Timed out waiting for a database connection");
+            }
+            borrowed.set(new BorrowedReader(reader));
+            return reader;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataAccessException("Interrupted while waiting for a database connection", e);
+        }
+    }
+
+    /**
+     * gives a read connection back to the pool
+     * @param reader
+     */
+    public void releaseReader(DSLContext reader) {
+        BorrowedReader held = borrowed.get();
+        if (held != null && --held.holds > 0) {
+            return;
+        }
+        borrowed.remove();
+        readers.add(reader);
+    }
+
+    /**
+     * takes the writer connection, waiting for the current write to finish.
+     * It has to be given back with {@link #releaseWriter()}.
+     * @return
+     */
+    public DSLContext lockWriter() {
+        writeLock.lock();
+        return writer;
+    }
+
+    public void releaseWriter() {
+        writeLock.unlock();
+    }
+
+    /**
+     * gets the prepared statements of a borrowed connection
+     * @param jooq reader or writer from this pool
+     * @return
+     */
+    public StatementCache statements(DSLContext jooq) {
+        return statements.get(jooq);
+    }
+
+    /**
+     * closes all connections
+     */
+    public void close() {
+        for (StatementCache cache : statements.values()) {
+            cache.close();
+        }
+        for (Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                System.out.println("Error closing DB connection");
+                e.printStackTrace();
+            }
+        }
+        connections.clear();
+    }
+}
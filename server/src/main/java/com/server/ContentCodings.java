@@ -0,0 +1,88 @@
+package com.server;
+
+/**
+ * Picks the content coding of responses and keeps their ETags apart per coding.
+ */
+public final class ContentCodings {
+
+    private ContentCodings() {
+    }
+
+    /**
+     * picks the compression from an Accept-Encoding header, gzip before deflate.
+     * A coding listed with q=0 is refused even if * is accepted.
+     * @param acceptEncoding
+     * @return "gzip", "deflate" or null to send the response uncompressed
+     */
+    public static String choose(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        // quality of each coding, null if it is not listed
+        Double gzip = null, deflate = null, any = null;
+        for (String coding : acceptEncoding.toLowerCase().split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            switch (name) {
+                case "gzip":
+                case "x-gzip":
+                    gzip = gzip == null ? quality : Math.max(gzip, quality);
+                    break;
+                case "deflate":
+                    deflate = quality;
+                    break;
+                case "*":
+                    any = quality;
+                    break;
+            }
+        }
+        if (isAccepted(gzip, any)) {
+            return "gzip";
+        }
+        return isAccepted(deflate, any) ? "deflate" : null;
+    }
+
+    private static boolean isAccepted(Double quality, Double any) {
+        if (quality != null) {
+            return quality > 0;
+        }
+        return any != null && any > 0;
+    }
+
+    /**
+     * gives an ETag the suffix of a content coding, "1-m2" sent with gzip becomes "1-m2-gzip"
+     * @param etag
+     * @param encoding
+     * @return
+     */
+    public static String encodedTag(String etag, String encoding) {
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    /**
+     * checks if a tag from If-None-Match is the ETag of the current data. A tag with a coding suffix only matches
+     * if the response would still be sent in that coding, the tag without one matches either way because
+     * small responses are not compressed.
+     * @param tag
+     * @param etag ETag without a coding suffix
+     * @param encoding the coding picked for the request, null if none
+     * @return
+     */
+    public static boolean tagMatches(String tag, String etag, String encoding) {
+        if (tag.startsWith("W/")) {
+            tag = tag.substring(2);
+        }
+        return tag.equals(etag) || tag.equals("*") || (encoding != null && tag.equals(encodedTag(etag, encoding)));
+    }
+}
@@ -0,0 +1,44 @@
+package com.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Version counters of the data behind the GET endpoints, used as ETags.
+ * A counter is bumped after every change to its table, so an unchanged tag means the response would be the same.
+ * The start time of the server is part of the tag, so tags from before a restart never match.
+ */
+public class DataVersions {
+    private final long epoch = System.currentTimeMillis();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong tours = new AtomicLong();
+
+    /**
+     * called after messages were added or changed, including their visit counts and weather
+     */
+    public void messagesChanged() {
+        messages.incrementAndGet();
+    }
+
+    /**
+     * called after tours were added or changed
+     */
+    public void toursChanged() {
+        tours.incrementAndGet();
+    }
+
+    /**
+     * gets the ETag of responses built from messages only
+     * @return
+     */
+    public String messagesTag() {
+        return "\"" + epoch + "-m" + messages.get() + "\"";
+    }
+
+    /**
+     * gets the ETag of responses built from tours and the messages of their locations
+     * @return
+     */
+    public String toursTag() {
+        return "\"" + epoch + "-m" + messages.get() + "-t" + tours.get() + "\"";
+    }
+}
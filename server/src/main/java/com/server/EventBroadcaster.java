@@ -0,0 +1,132 @@
+package com.server;
+
+import org.json.JSONObject;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans changes of the data out to the clients of /events. Every subscriber has a bounded buffer of its own:
+ * publishing only offers the event to the buffers and never waits, and a subscriber whose buffer is full is
+ * dropped, so a slow client can not hold up the writes that publish events.
+ */
+public class EventBroadcaster {
+
+    /**
+     * events of one client, taken by the thread that writes them to the client's connection
+     */
+    public class Subscription {
+        private final ArrayBlockingQueue<String> buffer;
+        private volatile boolean overflowed = false;
+
+        private Subscription(int bufferSize) {
+            buffer = new ArrayBlockingQueue<>(bufferSize);
+        }
+
+        /**
+         * waits for the next event
+         * @param timeoutMillis
+         * @return the event formatted for the event stream, null if none came in time
+         * @throws InterruptedException
+         */
+        public String next(long timeoutMillis) throws InterruptedException {
+            return buffer.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @return true if events were lost because the buffer was full, the subscription gets no more events then
+         */
+        public boolean isOverflowed() {
+            return overflowed;
+        }
+
+        /**
+         * stops the events of this subscription
+         */
+        public void close() {
+            subscribers.remove(this);
+        }
+
+        private void offer(String event) {
+            if (!buffer.offer(event)) {
+                overflowed = true;
+                dropped.incrementAndGet();
+                close();
+            }
+        }
+    }
+
+    private final Set<Subscription> subscribers = ConcurrentHashMap.newKeySet();
+    private final int bufferSize;
+    private final int maxSubscribers;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param bufferSize how many events a subscriber can be behind before it is dropped
+     * @param maxSubscribers how many clients can be subscribed at once
+     */
+    EventBroadcaster(int bufferSize, int maxSubscribers) {
+        this.bufferSize = bufferSize;
+        this.maxSubscribers = maxSubscribers;
+    }
+
+    /**
+     * creates a broadcaster configured by the events.bufferSize and events.maxSubscribers system properties
+     * @return
+     */
+    public static EventBroadcaster fromSystemProperties() {
+        return new EventBroadcaster(Integer.getInteger("events.bufferSize", 256),
+                Integer.getInteger("events.maxSubscribers", 10000));
+    }
+
+    /**
+     * adds a subscriber
+     * @return the subscription, null if there are already as many subscribers as allowed
+     */
+    public Subscription subscribe() {
+        if (subscribers.size() >= maxSubscribers) {
+            return null;
+        }
+        Subscription subscription = new Subscription(bufferSize);
+        subscribers.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * checks if anyone listens, so events that take work to build can be skipped
+     * @return
+     */
+    public boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    /**
+     * sends an event to every subscriber. The event is formatted once and shared by all of them.
+     * @param name name of the event, e.g. "created"
+     * @param data
+     */
+    public void publish(String name, JSONObject data) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        String event = "event: " + name + "\ndata: " + data + "\n\n";
+        published.incrementAndGet();
+        for (Subscription subscription : subscribers) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * adds the amount of subscribers and events to the stats
+     * @param stats
+     */
+    public void registerStats(StatsHandler stats) {
+        stats.register("events.subscribers", subscribers::size);
+        stats.register("events.published", published::get);
+        stats.register("events.dropped", dropped::get);
+    }
+}
@@ -0,0 +1,101 @@
+package com.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Keeps a Server-Sent Events connection open and writes the events of the {@link EventBroadcaster} to it:
+ * "created" and "updated" with the messages, "visits" with the visit counts added since the last one.
+ * A client that falls too far behind gets an "overflow" event and is disconnected, it should resync
+ * with GET /info?changedSince= and reconnect.
+ * Each connection is written by its own thread of the given executor, which should use virtual threads
+ * because the connections mostly wait.
+ */
+public class EventsHandler implements HttpHandler {
+    private static final long HEARTBEAT_MILLIS = Long.getLong("events.heartbeatSeconds", 15) * 1000;
+
+    private final EventBroadcaster events;
+    private final ExecutorService streams;
+
+    /**
+     * @param events
+     * @param streams runs the loop that writes the events of one connection
+     */
+    EventsHandler(EventBroadcaster events, ExecutorService streams) {
+        this.events = events;
+        this.streams = streams;
+    }
+
+    /**
+     * Handle the given request and generate an appropriate response.
+     * See {@link HttpExchange} for a description of the steps
+     * involved in handling an exchange.
+     *
+     * @param exchange the exchange containing the request from the
+     *                 client and used to send the response
+     * @throws NullPointerException if exchange is {@code null}
+     * @throws IOException          if an I/O error occurs
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_NOT_IMPLEMENTED, "Not Supported");
+            return;
+        }
+        EventBroadcaster.Subscription subscription = events.subscribe();
+        if (subscription == null) {
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(Integer.getInteger("server.retryAfterSeconds", 1)));
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_UNAVAILABLE, "Too many event streams, try again later");
+            return;
+        }
+        try {
+            streams.execute(() -> stream(exchange, subscription));
+        } catch (RejectedExecutionException e) {
+            subscription.close();
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_UNAVAILABLE, "Server is shutting down");
+        }
+    }
+
+    /**
+     * writes events to the connection until the client leaves, falls behind or the thread is interrupted.
+     * A comment is sent when there have been no events for a while, so proxies keep the connection open
+     * and a client that left is noticed.
+     * @param exchange
+     * @param subscription
+     */
+    private void stream(HttpExchange exchange, EventBroadcaster.Subscription subscription) {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        try (OutputStream output = exchange.getResponseBody()) {
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+            write(output, ": connected\n\n");
+            while (true) {
+                if (subscription.isOverflowed()) {
+                    write(output, "event: overflow\ndata: {}\n\n");
+                    break;
+                }
+                String event = subscription.next(HEARTBEAT_MILLIS);
+                write(output, event != null ? event : ": keepalive\n\n");
+            }
+        } catch (IOException e) {
+            // the client closed the connection
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscription.close();
+            exchange.close();
+        }
+    }
+
+    private static void write(OutputStream output, String text) throws IOException {
+        output.write(text.getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+}
@@ -5,26 +5,36 @@ import com.sun.net.httpserver.HttpHandler;
 import org.jooq.exception.DataAccessException;
 import org.json.JSONArray;
 import org.json.JSONObject;
-import org.json.XML;
 
 
 import java.io.*;
 import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
-import java.time.DateTimeException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.stream.Collectors;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 public class InfoHandler implements HttpHandler {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_BULK_ITEMS = Integer.getInteger("info.bulkMaxItems", 10000);
+    private static final int MAX_BODY_BYTES = Integer.getInteger("info.maxBodyBytes", 16 * 1024 * 1024);
+
     private final MsgServerDatabase database;
-    InfoHandler(MsgServerDatabase database) {
+    private final WeatherClient weatherClient;
+    private final WeatherEnricher weatherEnricher;
+
+    /**
+     * @param database
+     * @param weatherClient
+     * @param weatherEnricher adds weather to stored messages in the background, null to wait for the weather before storing
+     */
+    InfoHandler(MsgServerDatabase database, WeatherClient weatherClient, WeatherEnricher weatherEnricher) {
         this.database = database;
+        this.weatherClient = weatherClient;
+        this.weatherEnricher = weatherEnricher;
     }
 
     /**
@@ -50,64 +60,65 @@ public class InfoHandler implements HttpHandler {
     }
 
     /**
-     * handles POST requests by parsing json data and adding messages to the database if data is correct
+     * handles POST requests by decoding the json data and adding messages to the database if data is correct
      * @param exchange
      * @throws IOException
      */
     private void handlePOST(HttpExchange exchange) throws  IOException{
-        InputStream body = exchange.getRequestBody();
-        String bodyText = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8)).lines().collect(Collectors.joining("\n"));
-        body.close();
-        JSONObject json;
+        byte[] body = Server.readBody(exchange, MAX_BODY_BYTES);
+        if (body == null){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_ENTITY_TOO_LARGE, "At most " + MAX_BODY_BYTES + " bytes at once");
+            return;
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        boolean ndjson = contentType != null && contentType.toLowerCase().contains("ndjson");
+        if (ndjson || startsWithArray(body)){
+            handleBulkPOST(exchange, body, ndjson);
+            return;
+        }
+        MessageDecoder.Decoded decoded;
         try {
-            json = new JSONObject(bodyText);
-        }catch (Throwable e){
+            decoded = MessageDecoder.decode(body);
+        }catch (IllegalArgumentException e){
             e.printStackTrace();
             Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "not JSON data");
             return;
         }
 
-        int jsonLength = json.length();
+        int jsonLength = decoded.getFieldCount();
         if (jsonLength != 2 && jsonLength != 6 && jsonLength != 8 && jsonLength != 9) {
             Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "Incorrect JSON length");
+            return;
         }
-        User sender;
-        Double latitude = null, longitude = null;
-        Double weather = null;
-        String updateReason = null;
-
 
         try {
-            sender = database.getUser(exchange.getPrincipal().getUsername());
-            if (jsonLength == 2){
-                Integer locationID = json.getInt("locationID");
-                database.visitLocation(locationID);
+            User sender = ((UserPrincipal) exchange.getPrincipal()).getUser();
+            Integer id = decoded.getLocationID();
+            if (jsonLength == 2 && decoded.getError() == null && id != null){
+                database.visitLocation(id);
                 exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
                 return;
             }
-
-            if (json.has("latitude")){
-                latitude = json.getDouble("latitude");
-                longitude = json.getDouble("longitude");
-                if (json.has("weather")){
-                    weather = getWeather(latitude, longitude);
-                }
-            }
-            if (json.has("updatereason")){
-                updateReason = json.getString("updatereason");
-            }
-            if (!validTimestamp(json.getString("originalPostingTime"))){
-                Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "Incorrect time format");
+            if (decoded.getError() != null || !decoded.isComplete()){
+                Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST,
+                        decoded.getError() != null ? decoded.getError() : "Incorrect JSON data");
                 return;
             }
-            if (json.has("locationID")){
-                database.updateMessage(json.getInt("locationID"), new Message(json.getString("locationName"), json.getString("locationDescription"),
-                        json.getString("locationCity"), json.getString("locationCountry"), json.getString("locationStreetAddress"),
-                        json.getString("originalPostingTime"), sender.getNickname(), latitude, longitude, weather, updateReason));
+
+            Message message = decoded.getMessage();
+            message.setOriginalPoster(sender.getNickname());
+            boolean weatherRequested = decoded.isWeatherRequested() && message.getLatitude() != null;
+            if (weatherRequested && weatherEnricher == null){
+                message.setWeather(weatherClient.getTemperature(message.getLatitude(), message.getLongitude()));
+            }
+            if (id != null){
+                message.setTimeModified(System.currentTimeMillis());
+                database.updateMessage(id, message);
             } else {
-                database.addMessage(new Message(json.getString("locationName"), json.getString("locationDescription"),
-                        json.getString("locationCity"), json.getString("locationCountry"), json.getString("locationStreetAddress"),
-                        json.getString("originalPostingTime"), sender.getNickname(), latitude, longitude, weather));
+                id = database.addMessage(message);
+            }
+            if (weatherRequested && weatherEnricher != null){
+                addWeatherLater(id, message.getLatitude(), message.getLongitude());
             }
             exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
 
@@ -117,86 +128,345 @@ public class InfoHandler implements HttpHandler {
         }
     }
 
+    /**
+     * checks if the first non-whitespace byte of the body starts a JSON array
+     * @param body
+     * @return
+     */
+    private static boolean startsWithArray(byte[] body){
+        for (byte b : body){
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t'){
+                return b == '[';
+            }
+        }
+        return false;
+    }
+
 
     /**
-     * handles GET requests by forming a JSONArray from messages and sending it to the user
+     * handles POST requests with many new messages, either as a JSON array or as NDJSON (one JSON object per line).
+     * Every item is checked first, then all valid ones are added in one transaction. The weather for the items is
+     * looked up in parallel. Sends back the result of each item in order: the new locationID or why it was not added.
      * @param exchange
+     * @param body
+     * @param ndjson
      * @throws IOException
      */
-    private void handleGET(HttpExchange exchange) throws  IOException{
-        JSONArray jsonArray = new JSONArray();
+    private void handleBulkPOST(HttpExchange exchange, byte[] body, boolean ndjson) throws IOException{
+        List<MessageDecoder.Decoded> items;
+        if (ndjson){
+            items = MessageDecoder.decodeLines(body);
+        } else {
+            try {
+                items = MessageDecoder.decodeArray(body);
+            } catch (IllegalArgumentException e){
+                Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "not JSON data");
+                return;
+            }
+        }
+        if (items.size() > MAX_BULK_ITEMS){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_ENTITY_TOO_LARGE, "At most " + MAX_BULK_ITEMS + " messages at once");
+            return;
+        }
+
+        User sender = ((UserPrincipal) exchange.getPrincipal()).getUser();
+        JSONObject[] results = new JSONObject[items.size()];
+        ArrayList<Integer> positions = new ArrayList<>();
         ArrayList<Message> messages = new ArrayList<>();
-        try {
-            messages = database.getMessages();
+        ArrayList<Boolean> weatherRequested = new ArrayList<>();
+        ArrayList<CompletableFuture<Double>> weathers = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++){
+            MessageDecoder.Decoded item = items.get(i);
+            if (item.getLocationID() != null){
+                results[i] = new JSONObject().put("error", "Only new messages can be added in bulk");
+                continue;
+            }
+            if (item.getError() != null || !item.isComplete()){
+                results[i] = new JSONObject().put("error", item.getError() != null ? item.getError() : "Incorrect JSON data");
+                continue;
+            }
+            Message message = item.getMessage();
+            message.setOriginalPoster(sender.getNickname());
+            boolean weather = item.isWeatherRequested() && message.getLatitude() != null;
+            messages.add(message);
+            positions.add(i);
+            weatherRequested.add(weather);
+            weathers.add(weather && weatherEnricher == null
+                    ? weatherClient.getTemperatureAsync(message.getLatitude(), message.getLongitude()).exceptionally(e -> null)
+                    : null);
         }
-        catch (DataAccessException | IllegalArgumentException e){
-            Server.sendResponse(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "Error while getting messages");
+        for (int i = 0; i < messages.size(); i++){
+            if (weathers.get(i) != null){
+                messages.get(i).setWeather(weathers.get(i).join());
+            }
+        }
+
+        List<Integer> ids;
+        try {
+            ids = database.addMessages(messages);
+        } catch (DataAccessException e){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "Error while adding messages");
             e.printStackTrace();
+            return;
+        }
+        for (int i = 0; i < ids.size(); i++){
+            results[positions.get(i)] = new JSONObject().put("locationID", ids.get(i));
+            if (weatherRequested.get(i) && weatherEnricher != null){
+                addWeatherLater(ids.get(i), messages.get(i).getLatitude(), messages.get(i).getLongitude());
+            }
         }
 
+        JSONObject response = new JSONObject();
+        response.put("added", ids.size());
+        response.put("failed", items.size() - ids.size());
+        response.put("results", new JSONArray(results));
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        Server.sendResponse(exchange, HttpURLConnection.HTTP_OK, response.toString());
+    }
+
+    /**
+     * queues a stored message for the weather enricher. If the queue is full the weather is added right away instead.
+     * @param id
+     * @param latitude
+     * @param longitude
+     */
+    private void addWeatherLater(Integer id, Double latitude, Double longitude){
+        if (!weatherEnricher.submit(id, latitude, longitude)){
+            Double weather = weatherClient.getTemperature(latitude, longitude);
+            if (weather != null){
+                database.updateWeather(Map.of(id, weather));
+            }
+        }
+    }
 
-        if (messages.isEmpty()){
-            exchange.sendResponseHeaders(HttpURLConnection.HTTP_NO_CONTENT, -1);
+    /**
+     * handles GET requests by streaming all messages to the user as a JSONArray
+     * @param exchange
+     * @throws IOException
+     */
+    private void handleGET(HttpExchange exchange) throws  IOException{
+        if (Server.notModified(exchange, database.getVersions().messagesTag())){
+            return;
+        }
+        Map<String, String> params = Server.queryParams(exchange);
+        if (params.containsKey("changedSince")){
+            handleChangesGET(exchange, params);
+            return;
         }
-        for (Message message : messages) {
-            jsonArray.put(message.toJSONObject());
+        if (params.containsKey("q")){
+            handleSearchGET(exchange, params);
+            return;
+        }
+        if (params.containsKey("near")){
+            handleNearGET(exchange, params);
+            return;
+        }
+        if (MessageQuery.isRequested(params)){
+            handlePagedGET(exchange, params);
+            return;
+        }
+        try (Stream<Message> messages = database.streamMessages(null, null)) {
+            Iterator<Message> iterator = messages.iterator();
+            if (!iterator.hasNext()){
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NO_CONTENT, -1);
+                return;
+            }
+            try (JSONStreamWriter writer = Server.startJSONStream(exchange)) {
+                writer.beginArray();
+                while (iterator.hasNext()) {
+                    writer.value(iterator.next().toJSONObject());
+                }
+                writer.endArray();
+            }
         }
-        byte[] bytes = jsonArray.toString().getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, bytes.length);
-        try (OutputStream output = exchange.getResponseBody()) {
-            output.write(bytes);
-        } catch (Exception e) {
+        catch (DataAccessException | IllegalArgumentException e){
+            Server.sendError(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "Error while getting messages");
             e.printStackTrace();
-            Server.sendResponse(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "error writing messages");
         }
     }
 
     /**
-     * checks if postingTime is in correct format
-     * @param originalPostingTime
-     * @return
+     * handles GET requests with filters (country, city, poster, postedAfter, postedBefore), a sort order
+     * (sort=visited|posted|modified) or paging (after, limit) by streaming one page of matching messages.
+     * Without a sort the messages are ordered by id. The cursor to continue from is sent as "next",
+     * it is left out on the last page.
+     * @param exchange
+     * @param params query parameters of the request
+     * @throws IOException
      */
-    public boolean validTimestamp(String originalPostingTime) {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+    private void handlePagedGET(HttpExchange exchange, Map<String, String> params) throws IOException{
+        MessageQuery query;
+        int limit;
+        try {
+            query = MessageQuery.fromParams(params);
+            limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : DEFAULT_PAGE_SIZE;
+        }catch (NumberFormatException e){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "Incorrect paging parameters");
+            return;
+        }catch (IllegalArgumentException e){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (limit < 1 || limit > MAX_PAGE_SIZE){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "limit must be between 1 and " + MAX_PAGE_SIZE);
+            return;
+        }
 
-        try{
-            LocalDateTime.parse(originalPostingTime, formatter);
-        }catch (DateTimeException e){
-            return false;
+        // one extra row tells if there is a next page without a second query
+        try (Stream<Message> messages = database.findMessages(query, limit + 1);
+             JSONStreamWriter writer = Server.startJSONStream(exchange)) {
+            Iterator<Message> iterator = messages.iterator();
+            Message last = null;
+            writer.beginObject().name("messages").beginArray();
+            for (int i = 0; i < limit && iterator.hasNext(); i++) {
+                last = iterator.next();
+                writer.value(last.toJSONObject());
+            }
+            writer.endArray();
+            if (iterator.hasNext()){
+                writer.name("next").value(query.cursorAfter(last));
+            }
+            writer.endObject();
+        }
+        catch (DataAccessException | IllegalArgumentException e){
+            Server.sendError(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "Error while getting messages");
+            e.printStackTrace();
         }
-        return true;
     }
 
     /**
-     * gets the weather information from a weather API on localhost:4001/weather.
-     * @param latitude
-     * @param longitude
-     * @return temperature value
+     * handles GET requests with ?changedSince=watermark by streaming the messages added or changed after the watermark,
+     * including visits and weather. The watermark to send next time is sent as "watermark", 0 gets all messages.
+     * @param exchange
+     * @param params query parameters of the request
+     * @throws IOException
      */
-    private Double getWeather(Double latitude, Double longitude) {
-        HttpClient client = HttpClient.newHttpClient();
-        JSONObject coordinates = new JSONObject();
-        coordinates.put("latitude", latitude);
-        coordinates.put("longitude", longitude);
+    private void handleChangesGET(HttpExchange exchange, Map<String, String> params) throws IOException{
+        long since;
+        try {
+            since = Long.parseLong(params.get("changedSince"));
+        }catch (NumberFormatException e){
+            since = -1;
+        }
+        if (since < 0){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "changedSince must be a watermark or epoch millis");
+            return;
+        }
 
-        String xmlRequest = XML.toString(coordinates, "coordinates");
+        try {
+            // read first, so changes written while streaming are left for the next sync instead of being lost
+            long watermark = database.getChangeWatermark();
+            try (Stream<Message> messages = since < watermark ? database.streamChangedMessages(since, watermark) : Stream.empty();
+                 JSONStreamWriter writer = Server.startJSONStream(exchange)) {
+                writer.beginObject().name("messages").beginArray();
+                Iterator<Message> iterator = messages.iterator();
+                while (iterator.hasNext()) {
+                    writer.value(iterator.next().toJSONObject());
+                }
+                writer.endArray();
+                writer.name("watermark").value(watermark);
+                writer.endObject();
+            }
+        }
+        catch (DataAccessException e){
+            Server.sendError(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "Error while getting messages");
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * handles GET requests with ?q=words&limit=N by streaming the messages whose name, description or city
+     * match the words as a JSONArray, best matches first
+     * @param exchange
+     * @param params query parameters of the request
+     * @throws IOException
+     */
+    private void handleSearchGET(HttpExchange exchange, Map<String, String> params) throws IOException{
+        String query = MsgServerDatabase.toMatchQuery(params.get("q"));
+        int limit;
         try {
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(new URI("http://localhost:4001/weather"))
-                    .header("Content-Type", "application/xml")
-                    .POST(HttpRequest.BodyPublishers.ofString(xmlRequest))
-                    .build();
+            limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : DEFAULT_PAGE_SIZE;
+        }catch (NumberFormatException e){
+            limit = -1;
+        }
+        if (query.isEmpty()){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "q must contain words to search for");
+            return;
+        }
+        if (limit < 1 || limit > MAX_PAGE_SIZE){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "limit must be between 1 and " + MAX_PAGE_SIZE);
+            return;
+        }
 
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        try (Stream<Message> messages = database.searchMessages(params.get("q"), limit)) {
+            Iterator<Message> iterator = messages.iterator();
+            if (!iterator.hasNext()){
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NO_CONTENT, -1);
+                return;
+            }
+            try (JSONStreamWriter writer = Server.startJSONStream(exchange)) {
+                writer.beginArray();
+                while (iterator.hasNext()) {
+                    writer.value(iterator.next().toJSONObject());
+                }
+                writer.endArray();
+            }
+        }
+        catch (DataAccessException e){
+            Server.sendError(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "Error while searching messages");
+            e.printStackTrace();
+        }
+    }
 
-            JSONObject responseJSON = XML.toJSONObject(response.body());
-            JSONObject weather = responseJSON.getJSONObject("weather");
-            return weather.getDouble("temperature");
+    /**
+     * handles GET requests with ?near=lat,lon&radius=meters&limit=N by sending the messages within the radius
+     * as a JSONArray, nearest first. Every message has its distance in meters.
+     * @param exchange
+     * @param params query parameters of the request
+     * @throws IOException
+     */
+    private void handleNearGET(HttpExchange exchange, Map<String, String> params) throws IOException{
+        double latitude, longitude, radius;
+        int limit;
+        try {
+            String[] point = params.get("near").split(",");
+            if (point.length != 2 || !params.containsKey("radius")){
+                throw new NumberFormatException();
+            }
+            latitude = Double.parseDouble(point[0].trim());
+            longitude = Double.parseDouble(point[1].trim());
+            radius = Double.parseDouble(params.get("radius"));
+            limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : DEFAULT_PAGE_SIZE;
+        }catch (NumberFormatException e){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "near must be latitude,longitude and radius in meters");
+            return;
+        }
+        if (!(latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180 && radius > 0)){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "Coordinates or radius out of range");
+            return;
+        }
+        if (limit < 1 || limit > MAX_PAGE_SIZE){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "limit must be between 1 and " + MAX_PAGE_SIZE);
+            return;
+        }
 
-        }catch (Exception e){
+        try {
+            List<Message> messages = database.getMessagesNear(latitude, longitude, radius, limit);
+            if (messages.isEmpty()){
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NO_CONTENT, -1);
+                return;
+            }
+            try (JSONStreamWriter writer = Server.startJSONStream(exchange)) {
+                writer.beginArray();
+                for (Message message : messages) {
+                    writer.value(message.toJSONObject().put("distance", Math.round(message.distanceTo(latitude, longitude))));
+                }
+                writer.endArray();
+            }
+        }
+        catch (DataAccessException e){
+            Server.sendError(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "Error while getting messages");
             e.printStackTrace();
         }
-        return null;
     }
 }
@@ -0,0 +1,144 @@
+package com.server;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Writes JSON straight to an output stream one value at a time, so large responses
+ * never have to be built in memory as a whole.
+ */
+public class JSONStreamWriter implements Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Writer writer;
+    // one entry per open array/object, true if it already has a value in it
+    private final Deque<Boolean> hasValues = new ArrayDeque<>();
+    private boolean expectingValue = false;
+
+    JSONStreamWriter(OutputStream output) {
+        writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * starts a JSON array
+     * @return
+     * @throws IOException
+     */
+    public JSONStreamWriter beginArray() throws IOException {
+        separate();
+        writer.write('[');
+        hasValues.push(false);
+        return this;
+    }
+
+    /**
+     * ends the innermost open JSON array
+     * @return
+     * @throws IOException
+     */
+    public JSONStreamWriter endArray() throws IOException {
+        hasValues.pop();
+        writer.write(']');
+        return this;
+    }
+
+    /**
+     * starts a JSON object
+     * @return
+     * @throws IOException
+     */
+    public JSONStreamWriter beginObject() throws IOException {
+        separate();
+        writer.write('{');
+        hasValues.push(false);
+        return this;
+    }
+
+    /**
+     * ends the innermost open JSON object
+     * @return
+     * @throws IOException
+     */
+    public JSONStreamWriter endObject() throws IOException {
+        hasValues.pop();
+        writer.write('}');
+        return this;
+    }
+
+    /**
+     * writes the name of the next value inside an object
+     * @param name
+     * @return
+     * @throws IOException
+     */
+    public JSONStreamWriter name(String name) throws IOException {
+        separate();
+        writer.write(JSONObject.quote(name));
+        writer.write(':');
+        expectingValue = true;
+        return this;
+    }
+
+    /**
+     * writes a JSONObject as the next value
+     * @param json
+     * @return
+     * @throws IOException
+     */
+    public JSONStreamWriter value(JSONObject json) throws IOException {
+        separate();
+        json.write(writer);
+        return this;
+    }
+
+    /**
+     * writes a string, number, boolean or null as the next value
+     * @param value
+     * @return
+     * @throws IOException
+     */
+    public JSONStreamWriter value(Object value) throws IOException {
+        separate();
+        writer.write(JSONObject.valueToString(value));
+        return this;
+    }
+
+    /**
+     * writes a comma if the next value is not the first one in its array or object
+     * @throws IOException
+     */
+    private void separate() throws IOException {
+        if (expectingValue) {
+            expectingValue = false;
+            return;
+        }
+        if (!hasValues.isEmpty()) {
+            if (hasValues.pop()) {
+                writer.write(',');
+            }
+            hasValues.push(true);
+        }
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * flushes what is left and closes the underlying stream
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
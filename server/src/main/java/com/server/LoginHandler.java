@@ -0,0 +1,75 @@
+package com.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.Collectors;
+
+public class LoginHandler implements HttpHandler {
+
+    private final UserAuthenticator authenticator;
+    private final SessionTokens tokens;
+    LoginHandler(UserAuthenticator authenticator, SessionTokens tokens){
+        this.authenticator = authenticator;
+        this.tokens = tokens;
+    }
+    /**
+     * Handle the given request and generate an appropriate response.
+     * See {@link HttpExchange} for a description of the steps
+     * involved in handling an exchange.
+     *
+     * @param exchange the exchange containing the request from the
+     *                 client and used to send the response
+     * @throws NullPointerException if exchange is {@code null}
+     * @throws IOException          if an I/O error occurs
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            handlePOST(exchange);
+        }
+        else {
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_NOT_IMPLEMENTED, "Not Supported");
+        }
+    }
+
+    /**
+     * handles POST requests by checking the username and password once and sending back a session token
+     * to use as "Authorization: Bearer token" on the other contexts
+     * @param exchange
+     * @throws IOException
+     */
+    private void handlePOST(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        String bodyText = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8)).lines().collect(Collectors.joining("\n"));
+        body.close();
+
+        JSONObject json;
+        try {
+            json = new JSONObject(bodyText);
+        }catch (Throwable e){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "not JSON data");
+            return;
+        }
+        try{
+            User user = authenticator.verify(json.getString("username"), json.getString("password"));
+            if (user == null) {
+                Server.sendResponse(exchange, HttpURLConnection.HTTP_UNAUTHORIZED, "Incorrect username or password");
+                return;
+            }
+            long expires = System.currentTimeMillis() + tokens.getTtlMillis();
+            JSONObject response = new JSONObject();
+            response.put("token", tokens.issue(user, expires));
+            response.put("expires", expires);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_OK, response.toString());
+        }catch (JSONException e){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "Incorrect JSON data");
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache that evicts entries that have not been read lately when full, an approximate LRU.
+ * Reads only look up a concurrent map and mark the entry as used, so they never wait for each other.
+ * Putting an entry takes a lock and moves a clock hand over the slots of the cached entries: a used entry
+ * is unmarked and gets another round, the first unused one is evicted.
+ * Entries can also expire after a fixed time to live. Counts hits, misses and evictions for the stats.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class LruCache<K, V> {
+
+    private static final class Entry<K, V> {
+        private final K key;
+        private final V value;
+        private final long expires;
+        // set by reads, cleared by the clock hand
+        private volatile boolean used;
+
+        Entry(K key, V value, long expires) {
+            this.key = key;
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final ConcurrentHashMap<K, Entry<K, V>> entries;
+    // every cached entry has a slot of its own, a slot of an entry that was replaced or invalidated is free again.
+    // The slots and the hand are guarded by the slots
+    private final Entry<K, V>[] slots;
+    private int hand;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries how many entries are kept at most
+     * @param ttlMillis how long an entry is valid after it was put, 0 or less to keep entries until evicted
+     */
+    @SuppressWarnings("unchecked")
+    LruCache(int maxEntries, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = Math.max(1, maxEntries);
+        entries = new ConcurrentHashMap<>();
+        slots = (Entry<K, V>[]) new Entry[this.maxEntries];
+    }
+
+    /**
+     * gets a cached value
+     * @param key
+     * @return the value, or null if it is not cached or has expired
+     */
+    public V get(K key) {
+        Entry<K, V> entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (isExpired(entry)) {
+            entries.remove(key, entry);
+            misses.increment();
+            return null;
+        }
+        // read before writing, so entries that are read all the time are not written all the time
+        if (!entry.used) {
+            entry.used = true;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * caches a value, replacing the old value of the key
+     * @param key
+     * @param value
+     */
+    public void put(K key, V value) {
+        Entry<K, V> entry = new Entry<>(key, value, System.currentTimeMillis() + ttlMillis);
+        synchronized (slots) {
+            slots[freeSlot()] = entry;
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * moves the clock hand to a slot that is empty or whose entry can go, evicting it if it is still cached
+     * @return
+     */
+    private int freeSlot() {
+        // entries that are read while the hand goes around are given up on after two rounds
+        for (int step = 0; ; step++) {
+            int slot = hand;
+            hand = (hand + 1) % slots.length;
+            Entry<K, V> entry = slots[slot];
+            if (entry == null || entries.get(entry.key) != entry) {
+                return slot;
+            }
+            if (isExpired(entry)) {
+                entries.remove(entry.key, entry);
+                return slot;
+            }
+            if (entry.used && step < 2 * slots.length) {
+                entry.used = false;
+                continue;
+            }
+            entries.remove(entry.key, entry);
+            evictions.increment();
+            return slot;
+        }
+    }
+
+    private boolean isExpired(Entry<K, V> entry) {
+        return ttlMillis > 0 && entry.expires < System.currentTimeMillis();
+    }
+
+    /**
+     * removes a key from the cache
+     * @param key
+     */
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * adds the size and the hit, miss and eviction counts of the cache to the stats
+     * @param stats
+     * @param prefix start of the stat names, e.g. "messages.cache"
+     */
+    public void registerStats(StatsHandler stats, String prefix) {
+        stats.register(prefix + ".size", this::size);
+        stats.register(prefix + ".maxEntries", this::getMaxEntries);
+        stats.register(prefix + ".hits", this::getHits);
+        stats.register(prefix + ".misses", this::getMisses);
+        stats.register(prefix + ".evictions", this::getEvictions);
+    }
+}
@@ -6,6 +6,12 @@ import java.time.*;
 import java.time.format.DateTimeFormatter;
 
 public class Message {
+    // formatters are immutable, so one of each is shared instead of building them for every message
+    private static final DateTimeFormatter POSTING_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+    private static final DateTimeFormatter UTC_FORMAT = POSTING_TIME_FORMAT.withZone(ZoneId.of("UTC"));
+    // mean radius of the earth in meters
+    public static final double EARTH_RADIUS = 6371008.8;
+
     private Integer id;
     private String locationName;
     private String locationDescription;
@@ -14,6 +20,8 @@ public class Message {
     private String locationStreetAddress;
     private String originalPoster;
     private String originalPostingTime;
+    // epoch millis of originalPostingTime, whichever of the two is missing is computed when it is first needed
+    private Long postingMillis;
     private Double latitude;
     private Double longitude;
     private Double weather;
@@ -21,6 +29,35 @@ public class Message {
     private Long timeModified;
     private String updateReason;
 
+    /**
+     * creates an empty message to be filled with the setters
+     */
+    Message(){
+        setTimesVisited(1);
+    }
+
+    /**
+     * copies a message, so a shared one can be handed out and changed without changing the original
+     * @param other
+     */
+    Message(Message other){
+        id = other.id;
+        locationName = other.locationName;
+        locationDescription = other.locationDescription;
+        locationCity = other.locationCity;
+        locationCountry = other.locationCountry;
+        locationStreetAddress = other.locationStreetAddress;
+        originalPoster = other.originalPoster;
+        originalPostingTime = other.originalPostingTime;
+        postingMillis = other.postingMillis;
+        latitude = other.latitude;
+        longitude = other.longitude;
+        weather = other.weather;
+        timesVisited = other.timesVisited;
+        timeModified = other.timeModified;
+        updateReason = other.updateReason;
+    }
+
     Message(String locationName, String locationDescription, String locationCity, String locationCountry, String locationStreetAddress,
             String originalPostingTime, String originalPoster, Double latitude, Double longitude, Double weather){
         setLocationName(locationName);
@@ -62,7 +99,7 @@ public class Message {
         setLocationCountry(locationCountry);
         setLocationStreetAddress(locationStreetAddress);
         setLocationDescription(locationDescription);
-        setOriginalPostingTime(unixToDate(unixTime));
+        setOriginalPostingTime(unixTime);
         setOriginalPoster(originalPoster);
         setLatitude(latitude);
         setLongitude(longitude);
@@ -118,11 +155,34 @@ public class Message {
     }
 
     public String getOriginalPostingTime() {
+        if (originalPostingTime == null && postingMillis != null) {
+            originalPostingTime = unixToDate(postingMillis);
+        }
         return originalPostingTime;
     }
 
     public void setOriginalPostingTime(String originalPostingTime) {
         this.originalPostingTime = originalPostingTime;
+        this.postingMillis = null;
+    }
+
+    /**
+     * sets the posting time as epoch millis, it is formatted only if the text is needed
+     * @param postingMillis
+     */
+    public void setOriginalPostingTime(long postingMillis) {
+        this.originalPostingTime = null;
+        this.postingMillis = postingMillis;
+    }
+
+    /**
+     * sets the posting time when both forms are already known, e.g. after validating the text
+     * @param originalPostingTime
+     * @param postingMillis
+     */
+    public void setOriginalPostingTime(String originalPostingTime, long postingMillis) {
+        this.originalPostingTime = originalPostingTime;
+        this.postingMillis = postingMillis;
     }
 
     public String getOriginalPoster() {
@@ -190,11 +250,12 @@ public class Message {
      * @return
      */
     public long getUnixDate(){
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+        if (postingMillis != null) {
+            return postingMillis;
+        }
         long unix = 0;
         try {
-            LocalDateTime time = LocalDateTime.parse(originalPostingTime, formatter);
-            unix = time.toInstant(ZoneOffset.UTC).toEpochMilli();
+            unix = parsePostingTime(originalPostingTime);
         }catch (DateTimeException e){
             System.out.println("Error parsing date");
             e.printStackTrace();
@@ -202,18 +263,44 @@ public class Message {
             System.out.println("Why are we still using this >:(");
             e.printStackTrace();
         }
+        postingMillis = unix;
         return unix;
     }
 
+    /**
+     * calculates the great-circle distance from the message's coordinates to a point with the haversine formula
+     * @param latitude
+     * @param longitude
+     * @return distance in meters, null if the message has no coordinates
+     */
+    public Double distanceTo(double latitude, double longitude){
+        if (this.latitude == null || this.longitude == null){
+            return null;
+        }
+        double dLat = Math.toRadians(latitude - this.latitude);
+        double dLon = Math.toRadians(longitude - this.longitude);
+        double a = Math.pow(Math.sin(dLat / 2), 2)
+                + Math.cos(Math.toRadians(this.latitude)) * Math.cos(Math.toRadians(latitude)) * Math.pow(Math.sin(dLon / 2), 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * parses a posting time in the yyyy-MM-dd'T'HH:mm:ss.SSSX format into epoch millis
+     * @param originalPostingTime
+     * @return
+     * @throws DateTimeException if the time is not in the correct format
+     */
+    public static long parsePostingTime(String originalPostingTime) throws DateTimeException {
+        return LocalDateTime.parse(originalPostingTime, POSTING_TIME_FORMAT).toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
     /**
      * formats a unix date back to the correct format.
      * @param unixTime
      * @return
      */
     private String unixToDate(Long unixTime) {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX").withZone(ZoneId.of("UTC"));
-        Instant instant = Instant.ofEpochMilli(unixTime);
-        return formatter.format(instant);
+        return UTC_FORMAT.format(Instant.ofEpochMilli(unixTime));
     }
 
     /**
@@ -229,7 +316,7 @@ public class Message {
         json.put("locationCountry", locationCountry);
         json.put("locationStreetAddress", locationStreetAddress);
         json.put("originalPoster", originalPoster);
-        json.put("originalPostingTime", originalPostingTime);
+        json.put("originalPostingTime", getOriginalPostingTime());
         json.put("timesVisited", timesVisited);
 
         if (latitude != null){
@@ -0,0 +1,510 @@
+package com.server;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Reads messages straight from the bytes of a POST /info body in one pass, without turning the body into a
+ * string or a JSONObject first. The posting time is checked and converted to epoch millis while it is read.
+ * Understands the flat message objects of /info, and JSON arrays or NDJSON (one object per line) of them.
+ * Like org.json, an object with the same key twice is not valid JSON.
+ */
+public class MessageDecoder {
+    private static final int MAX_DEPTH = 32;
+
+    /**
+     * one decoded message of the body. A value of the wrong type or a bad posting time does not stop the reading,
+     * it is kept as the error of the item so the other items of a bulk body can still be used.
+     */
+    public static class Decoded {
+        private final Message message = new Message();
+        private Integer locationID;
+        private boolean weatherRequested;
+        private int fieldCount;
+        private String error;
+
+        /**
+         * @return the message without its poster, which comes from the authenticated user
+         */
+        public Message getMessage() {
+            return message;
+        }
+
+        /**
+         * @return the locationID of the body, null if it has none
+         */
+        public Integer getLocationID() {
+            return locationID;
+        }
+
+        /**
+         * @return true if the body had a "weather" field
+         */
+        public boolean isWeatherRequested() {
+            return weatherRequested;
+        }
+
+        /**
+         * @return amount of fields in the object, including unknown ones
+         */
+        public int getFieldCount() {
+            return fieldCount;
+        }
+
+        /**
+         * @return why the item can not be used, null if it can
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * checks that the fields of a new or updated message are all there
+         * @return
+         */
+        public boolean isComplete() {
+            return message.getLocationName() != null && message.getLocationDescription() != null
+                    && message.getLocationCity() != null && message.getLocationCountry() != null
+                    && message.getLocationStreetAddress() != null && message.getOriginalPostingTime() != null
+                    && (message.getLatitude() == null) == (message.getLongitude() == null);
+        }
+
+        private void fail(String error) {
+            if (this.error == null) {
+                this.error = error;
+            }
+        }
+    }
+
+    private final byte[] bytes;
+    private final int end;
+    private int position;
+
+    private MessageDecoder(byte[] bytes, int start, int end) {
+        this.bytes = bytes;
+        this.position = start;
+        this.end = end;
+    }
+
+    /**
+     * decodes a body with one message object
+     * @param body
+     * @return
+     * @throws IllegalArgumentException if the body is not a JSON object
+     */
+    public static Decoded decode(byte[] body) throws IllegalArgumentException {
+        return decode(body, 0, body.length);
+    }
+
+    private static Decoded decode(byte[] body, int start, int end) throws IllegalArgumentException {
+        MessageDecoder decoder = new MessageDecoder(body, start, end);
+        decoder.skipWhitespace();
+        Decoded decoded = decoder.readMessage();
+        decoder.skipWhitespace();
+        if (decoder.position != end) {
+            throw decoder.syntaxError("data after the object");
+        }
+        return decoded;
+    }
+
+    /**
+     * decodes a body with a JSON array of message objects. Items that are not objects get an error.
+     * @param body
+     * @return the items in order
+     * @throws IllegalArgumentException if the body is not a JSON array
+     */
+    public static List<Decoded> decodeArray(byte[] body) throws IllegalArgumentException {
+        MessageDecoder decoder = new MessageDecoder(body, 0, body.length);
+        ArrayList<Decoded> items = new ArrayList<>();
+        decoder.skipWhitespace();
+        decoder.expect('[');
+        decoder.skipWhitespace();
+        if (decoder.peek() == ']') {
+            decoder.position++;
+        } else {
+            while (true) {
+                decoder.skipWhitespace();
+                if (decoder.peek() == '{') {
+                    items.add(decoder.readMessage());
+                } else {
+                    decoder.skipValue(0);
+                    Decoded item = new Decoded();
+                    item.fail("Incorrect JSON data");
+                    items.add(item);
+                }
+                decoder.skipWhitespace();
+                byte separator = decoder.next();
+                if (separator == ']') {
+                    break;
+                }
+                if (separator != ',') {
+                    throw decoder.syntaxError("expected , or ]");
+                }
+            }
+        }
+        decoder.skipWhitespace();
+        if (decoder.position != decoder.end) {
+            throw decoder.syntaxError("data after the array");
+        }
+        return items;
+    }
+
+    /**
+     * decodes an NDJSON body, one message object per line. Empty lines are skipped and lines that are not
+     * valid JSON objects get an error.
+     * @param body
+     * @return the items in order
+     */
+    public static List<Decoded> decodeLines(byte[] body) {
+        ArrayList<Decoded> items = new ArrayList<>();
+        int start = 0;
+        while (start < body.length) {
+            int lineEnd = start;
+            while (lineEnd < body.length && body[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (!isBlank(body, start, lineEnd)) {
+                try {
+                    items.add(decode(body, start, lineEnd));
+                } catch (IllegalArgumentException e) {
+                    Decoded item = new Decoded();
+                    item.fail("Incorrect JSON data");
+                    items.add(item);
+                }
+            }
+            start = lineEnd + 1;
+        }
+        return items;
+    }
+
+    private static boolean isBlank(byte[] body, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!isWhitespace(body[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * reads one message object, filling the message field by field
+     * @return
+     */
+    private Decoded readMessage() {
+        Decoded decoded = new Decoded();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+            return decoded;
+        }
+        HashSet<String> names = new HashSet<>();
+        while (true) {
+            skipWhitespace();
+            String name = readKey(names);
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            readField(decoded, name);
+            decoded.fieldCount++;
+            skipWhitespace();
+            byte separator = next();
+            if (separator == '}') {
+                return decoded;
+            }
+            if (separator != ',') {
+                throw syntaxError("expected , or }");
+            }
+        }
+    }
+
+    private void readField(Decoded decoded, String name) {
+        Message message = decoded.message;
+        switch (name) {
+            case "locationID":
+                Double id = readNumber(decoded);
+                if (id != null && (id != Math.rint(id) || Math.abs(id) > Integer.MAX_VALUE)) {
+                    decoded.fail("Incorrect JSON data");
+                } else if (id != null) {
+                    decoded.locationID = id.intValue();
+                }
+                break;
+            case "locationName":
+                message.setLocationName(readStringValue(decoded));
+                break;
+            case "locationDescription":
+                message.setLocationDescription(readStringValue(decoded));
+                break;
+            case "locationCity":
+                message.setLocationCity(readStringValue(decoded));
+                break;
+            case "locationCountry":
+                message.setLocationCountry(readStringValue(decoded));
+                break;
+            case "locationStreetAddress":
+                message.setLocationStreetAddress(readStringValue(decoded));
+                break;
+            case "originalPostingTime":
+                String time = readStringValue(decoded);
+                if (time != null) {
+                    try {
+                        message.setOriginalPostingTime(time, Message.parsePostingTime(time));
+                    } catch (DateTimeException e) {
+                        decoded.fail("Incorrect time format");
+                    }
+                }
+                break;
+            case "latitude":
+                message.setLatitude(readNumber(decoded));
+                break;
+            case "longitude":
+                message.setLongitude(readNumber(decoded));
+                break;
+            case "weather":
+                decoded.weatherRequested = true;
+                skipValue(0);
+                break;
+            case "updatereason":
+                message.setUpdateReason(readStringValue(decoded));
+                break;
+            default:
+                skipValue(0);
+        }
+    }
+
+    /**
+     * reads the key of an object field
+     * @param names the keys already read from the object
+     * @return
+     */
+    private String readKey(HashSet<String> names) {
+        int start = position;
+        String name = readString();
+        if (!names.add(name)) {
+            position = start;
+            throw syntaxError("duplicate key " + name);
+        }
+        return name;
+    }
+
+    /**
+     * reads a string value, or records an error and skips the value if it is not a string
+     * @param decoded
+     * @return
+     */
+    private String readStringValue(Decoded decoded) {
+        if (peek() == '"') {
+            return readString();
+        }
+        decoded.fail("Incorrect JSON data");
+        skipValue(0);
+        return null;
+    }
+
+    /**
+     * reads a number, also given as a string like org.json allows, or records an error and skips the value
+     * @param decoded
+     * @return
+     */
+    private Double readNumber(Decoded decoded) {
+        byte first = peek();
+        try {
+            if (first == '"') {
+                return Double.parseDouble(readString());
+            }
+            if (first == '-' || (first >= '0' && first <= '9')) {
+                int start = position;
+                while (position < end && isNumberByte(bytes[position])) {
+                    position++;
+                }
+                return Double.parseDouble(new String(bytes, start, position - start, StandardCharsets.US_ASCII));
+            }
+        } catch (NumberFormatException e) {
+            decoded.fail("Incorrect JSON data");
+            return null;
+        }
+        decoded.fail("Incorrect JSON data");
+        skipValue(0);
+        return null;
+    }
+
+    /**
+     * reads a JSON string. Strings without escapes are decoded from the bytes in one go.
+     * @return
+     */
+    private String readString() {
+        expect('"');
+        int start = position;
+        while (position < end) {
+            byte b = bytes[position];
+            if (b == '"') {
+                String value = new String(bytes, start, position - start, StandardCharsets.UTF_8);
+                position++;
+                return value;
+            }
+            if (b == '\\') {
+                return readEscapedString(start);
+            }
+            if (b >= 0 && b < 0x20) {
+                throw syntaxError("control character in string");
+            }
+            position++;
+        }
+        throw syntaxError("unterminated string");
+    }
+
+    private String readEscapedString(int start) {
+        StringBuilder value = new StringBuilder(position - start + 16);
+        int segment = start;
+        while (position < end) {
+            byte b = bytes[position];
+            if (b == '"') {
+                value.append(new String(bytes, segment, position - segment, StandardCharsets.UTF_8));
+                position++;
+                return value.toString();
+            }
+            if (b >= 0 && b < 0x20) {
+                throw syntaxError("control character in string");
+            }
+            if (b != '\\') {
+                position++;
+                continue;
+            }
+            value.append(new String(bytes, segment, position - segment, StandardCharsets.UTF_8));
+            position++;
+            byte escaped = next();
+            switch (escaped) {
+                case '"': value.append('"'); break;
+                case '\\': value.append('\\'); break;
+                case '/': value.append('/'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    if (position + 4 > end) {
+                        throw syntaxError("bad unicode escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(new String(bytes, position, 4, StandardCharsets.US_ASCII), 16));
+                    } catch (NumberFormatException e) {
+                        throw syntaxError("bad unicode escape");
+                    }
+                    position += 4;
+                    break;
+                default:
+                    throw syntaxError("bad escape");
+            }
+            segment = position;
+        }
+        throw syntaxError("unterminated string");
+    }
+
+    /**
+     * skips over any JSON value, nested objects and arrays included
+     * @param depth
+     */
+    private void skipValue(int depth) {
+        if (depth > MAX_DEPTH) {
+            throw syntaxError("nested too deep");
+        }
+        byte first = peek();
+        switch (first) {
+            case '"':
+                readString();
+                return;
+            case '{':
+            case '[':
+                byte close = first == '{' ? (byte) '}' : (byte) ']';
+                position++;
+                skipWhitespace();
+                if (peek() == close) {
+                    position++;
+                    return;
+                }
+                HashSet<String> names = first == '{' ? new HashSet<>() : null;
+                while (true) {
+                    skipWhitespace();
+                    if (first == '{') {
+                        readKey(names);
+                        skipWhitespace();
+                        expect(':');
+                        skipWhitespace();
+                    }
+                    skipValue(depth + 1);
+                    skipWhitespace();
+                    byte separator = next();
+                    if (separator == close) {
+                        return;
+                    }
+                    if (separator != ',') {
+                        throw syntaxError("expected , or " + (char) close);
+                    }
+                }
+            case 't':
+                expectWord("true");
+                return;
+            case 'f':
+                expectWord("false");
+                return;
+            case 'n':
+                expectWord("null");
+                return;
+            default:
+                if (first == '-' || (first >= '0' && first <= '9')) {
+                    while (position < end && isNumberByte(bytes[position])) {
+                        position++;
+                    }
+                    return;
+                }
+                throw syntaxError("unexpected character");
+        }
+    }
+
+    private void expectWord(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            expect(word.charAt(i));
+        }
+    }
+
+    private void expect(char expected) {
+        if (next() != expected) {
+            throw syntaxError("expected " + expected);
+        }
+    }
+
+    private byte peek() {
+        if (position >= end) {
+            throw syntaxError("unexpected end");
+        }
+        return bytes[position];
+    }
+
+    private byte next() {
+        byte b = peek();
+        position++;
+        return b;
+    }
+
+    private void skipWhitespace() {
+        while (position < end && isWhitespace(bytes[position])) {
+            position++;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static boolean isNumberByte(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+
+    private IllegalArgumentException syntaxError(String problem) {
+        return new IllegalArgumentException("not JSON data: " + problem + " at byte " + position);
+    }
+}
@@ -0,0 +1,68 @@
+package com.server;
+
+import org.jooq.Field;
+import org.jooq.Record;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import static org.jooq.impl.DSL.*;
+
+/**
+ * Turns rows of the messages table into {@link Message}s by column position.
+ * Queries select the columns in the order of {@link #COLUMNS} (or {@link #FIELDS} with jOOQ), so the position
+ * of every column is known beforehand and nothing is looked up by name for each row.
+ */
+public class MessageMapper {
+    public static final String COLUMNS = "id, locationName, locationDescription, locationCity, locationCountry, locationStreetAddress, "
+            + "originalPostingTime, originalPoster, latitude, longitude, weather, timesVisited, timeModified, updateReason";
+
+    // for joins with tables that have columns of the same name
+    public static final String QUALIFIED_COLUMNS = "messages." + String.join(", messages.", COLUMNS.split(", "));
+
+    public static final Field<?>[] FIELDS = Arrays.stream(COLUMNS.split(", "))
+            .map(column -> field(name("messages", column)))
+            .toArray(Field<?>[]::new);
+
+    private MessageMapper() {
+    }
+
+    /**
+     * reads a message from the current row of a JDBC result
+     * @param row
+     * @param first position of the id column, 1 if the message columns come first
+     * @return
+     * @throws SQLException
+     */
+    public static Message fromResultSet(ResultSet row, int first) throws SQLException {
+        return new Message(row.getInt(first), row.getString(first + 1), row.getString(first + 2), row.getString(first + 3),
+                row.getString(first + 4), row.getString(first + 5), row.getLong(first + 6), row.getString(first + 7),
+                nullableDouble(row, first + 8), nullableDouble(row, first + 9), nullableDouble(row, first + 10),
+                row.getInt(first + 11), nullableLong(row, first + 12), row.getString(first + 13));
+    }
+
+    /**
+     * reads a message from a jOOQ record that has {@link #FIELDS} starting at the given index
+     * @param record
+     * @param first index of the id field, 0 if the message fields come first
+     * @return
+     */
+    public static Message fromRecord(Record record, int first) {
+        return new Message(record.get(first, Integer.class), record.get(first + 1, String.class), record.get(first + 2, String.class),
+                record.get(first + 3, String.class), record.get(first + 4, String.class), record.get(first + 5, String.class),
+                record.get(first + 6, Long.class), record.get(first + 7, String.class), record.get(first + 8, Double.class),
+                record.get(first + 9, Double.class), record.get(first + 10, Double.class), record.get(first + 11, Integer.class),
+                record.get(first + 12, Long.class), record.get(first + 13, String.class));
+    }
+
+    private static Double nullableDouble(ResultSet row, int column) throws SQLException {
+        double value = row.getDouble(column);
+        return row.wasNull() ? null : value;
+    }
+
+    private static Long nullableLong(ResultSet row, int column) throws SQLException {
+        long value = row.getLong(column);
+        return row.wasNull() ? null : value;
+    }
+}
@@ -0,0 +1,150 @@
+package com.server;
+
+import java.time.DateTimeException;
+import java.util.Map;
+
+/**
+ * Filters, sort order and position of one page of a message listing, read from the query parameters of GET /info.
+ * Sorting by anything else than the id is newest or most visited first, with the id breaking ties,
+ * and pages continue from a "value_id" cursor of the last message of the previous page.
+ */
+public class MessageQuery {
+    public enum Sort {
+        ID, VISITED, POSTED, MODIFIED
+    }
+
+    private String country;
+    private String city;
+    private String poster;
+    private Long postedAfter;
+    private Long postedBefore;
+    private Sort sort = Sort.ID;
+    private Long afterValue;
+    private Integer afterID;
+
+    MessageQuery() {
+    }
+
+    /**
+     * checks if the parameters ask for a filtered, sorted or paged listing instead of all messages
+     * @param params
+     * @return
+     */
+    public static boolean isRequested(Map<String, String> params) {
+        for (String name : new String[]{"after", "limit", "country", "city", "poster", "postedAfter", "postedBefore", "sort"}) {
+            if (params.containsKey(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * reads the filters, sort and cursor from query parameters
+     * @param params
+     * @return
+     * @throws IllegalArgumentException with a message for the client if a parameter is not valid
+     */
+    public static MessageQuery fromParams(Map<String, String> params) throws IllegalArgumentException {
+        MessageQuery query = new MessageQuery();
+        query.country = params.get("country");
+        query.city = params.get("city");
+        query.poster = params.get("poster");
+        query.postedAfter = parseTime(params.get("postedAfter"));
+        query.postedBefore = parseTime(params.get("postedBefore"));
+        if (params.containsKey("sort")) {
+            try {
+                query.sort = Sort.valueOf(params.get("sort").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("sort must be one of id, visited, posted or modified");
+            }
+        }
+        String after = params.get("after");
+        if (after != null) {
+            try {
+                if (query.sort == Sort.ID) {
+                    query.afterID = Integer.valueOf(after);
+                } else {
+                    int separator = after.lastIndexOf('_');
+                    query.afterValue = Long.valueOf(after.substring(0, separator));
+                    query.afterID = Integer.valueOf(after.substring(separator + 1));
+                }
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("after must be the next value of the previous page");
+            }
+        }
+        return query;
+    }
+
+    /**
+     * reads a time given either in the posting time format or as epoch millis
+     * @param time
+     * @return epoch millis, null if time is null
+     */
+    private static Long parseTime(String time) throws IllegalArgumentException {
+        if (time == null) {
+            return null;
+        }
+        try {
+            return time.chars().allMatch(Character::isDigit) && !time.isEmpty() ? Long.parseLong(time) : Message.parsePostingTime(time);
+        } catch (NumberFormatException | DateTimeException e) {
+            throw new IllegalArgumentException("postedAfter and postedBefore must be times like 2024-01-31T12:00:00.000Z");
+        }
+    }
+
+    /**
+     * gets the cursor that continues after a message
+     * @param message last message of a page
+     * @return the id when sorting by id, otherwise the sorted value and the id joined with _
+     */
+    public Object cursorAfter(Message message) {
+        switch (sort) {
+            case VISITED:
+                return message.getTimesVisited() + "_" + message.getId();
+            case POSTED:
+                return message.getUnixDate() + "_" + message.getId();
+            case MODIFIED:
+                return message.getTimeModified() + "_" + message.getId();
+            default:
+                return message.getId();
+        }
+    }
+
+    public String getCountry() {
+        return country;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    public String getPoster() {
+        return poster;
+    }
+
+    public Long getPostedAfter() {
+        return postedAfter;
+    }
+
+    public Long getPostedBefore() {
+        return postedBefore;
+    }
+
+    public Sort getSort() {
+        return sort;
+    }
+
+    /**
+     * @return sorted value of the last message of the previous page, null when sorting by id or on the first page
+     */
+    public Long getAfterValue() {
+        return afterValue;
+    }
+
+    /**
+     * @return id of the last message of the previous page, null on the first page
+     */
+    public Integer getAfterID() {
+        return afterID;
+    }
+}
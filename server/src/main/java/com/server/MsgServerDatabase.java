@@ -1,17 +1,42 @@
 package com.server;
 
 import java.io.File;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.security.SecureRandom;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import org.jooq.BatchBindStep;
+import org.jooq.Condition;
 import org.jooq.DSLContext;
+import org.jooq.Field;
 import org.jooq.Record;
+import org.jooq.Record1;
+import org.jooq.Record3;
 import org.jooq.Result;
 import org.jooq.SQLDialect;
+import org.jooq.Select;
+import org.jooq.SelectConditionStep;
+import org.jooq.SelectFieldOrAsterisk;
 import org.jooq.exception.DataAccessException;
 import org.jooq.impl.DSL;
 import org.jooq.impl.SQLDataType;
@@ -22,9 +47,40 @@ import org.json.JSONObject;
 import static org.jooq.impl.DSL.*;
 
 public class MsgServerDatabase {
+    private static final int READ_CONNECTIONS = Integer.getInteger("db.readers", Runtime.getRuntime().availableProcessors());
+    private static final long VISIT_FLUSH_MILLIS = Long.getLong("visits.flushMillis", 1000);
+    private static final long VISIT_FLUSH_THRESHOLD = Long.getLong("visits.flushThreshold", 1000);
+    private static final int TOP_VISITED_CAPACITY = Integer.getInteger("topVisited.capacity", 100);
+    private static final int MESSAGE_CACHE_SIZE = Integer.getInteger("messages.cacheSize", 10000);
+
+    private static final String SELECT_MESSAGE_BY_ID = "SELECT " + MessageMapper.COLUMNS + " FROM messages WHERE id = ?";
+    private static final String SELECT_MESSAGES_AFTER = "SELECT " + MessageMapper.COLUMNS + " FROM messages WHERE id > ? ORDER BY id LIMIT ?";
+    private static final String SELECT_MESSAGES_IN_BOX = "SELECT " + MessageMapper.COLUMNS + " FROM messages_rtree "
+            + "JOIN messages ON messages.id = messages_rtree.message_id "
+            + "WHERE maxLatitude >= ? AND minLatitude <= ? AND maxLongitude >= ? AND minLongitude <= ?";
+    private static final String SELECT_MESSAGES_CHANGED = "SELECT " + MessageMapper.COLUMNS + " FROM messages "
+            + "WHERE lastChanged > ? AND lastChanged <= ? ORDER BY lastChanged, id";
+    // bm25 weights of locationName, locationDescription and locationCity, a match in the name counts the most
+    private static final String SEARCH_MESSAGES = "SELECT " + MessageMapper.QUALIFIED_COLUMNS + " FROM messages_fts "
+            + "JOIN messages ON messages.id = messages_fts.rowid "
+            + "WHERE messages_fts MATCH ? ORDER BY bm25(messages_fts, 10.0, 1.0, 5.0) LIMIT ?";
+
+    // renders queries built with jOOQ to SQL for the cached prepared statements, never connected to the database
+    private static final DSLContext RENDERER = DSL.using(SQLDialect.SQLITE);
+
     private final String database;
-    private Connection dbConnection = null;
-    private DSLContext jooq;
+    private ConnectionPool connections = null;
+    private final VisitCounter visits = new VisitCounter(this::addVisits, VISIT_FLUSH_MILLIS, VISIT_FLUSH_THRESHOLD);
+    private final VisitLeaderboard leaderboard = new VisitLeaderboard(TOP_VISITED_CAPACITY, visits::pendingVisits,
+            this::loadLeaderboardEntries);
+    private final DataVersions versions = new DataVersions();
+    private final EventBroadcaster events = EventBroadcaster.fromSystemProperties();
+    // messages by id as they are stored, without the pending visits. Writes drop the messages they change, cached ones are never changed.
+    private final LruCache<Integer, Message> messageCache = new LruCache<>(MESSAGE_CACHE_SIZE, 0);
+    // counts the changes of cached messages, a message read before a change is not cached. Guarded by messageCache.
+    private long messageCacheGeneration;
+    // lastChanged of the latest write, only used while holding the writer
+    private long lastChange;
 
     MsgServerDatabase(String dbPath, String dbName){
         this.database = dbPath + dbName;
@@ -38,98 +94,277 @@ public class MsgServerDatabase {
     }
 
     /**
-     * opens DB connection, creates new DB if given DB does not exist.
+     * opens DB connections, creates new DB if given DB does not exist and applies the schema migrations it is missing.
      * @throws SQLException
      */
     public synchronized void open() throws SQLException, DataAccessException{
         boolean dbExists = new File(database.substring(12)).exists();
+        connections = new ConnectionPool(database, Math.max(1, READ_CONNECTIONS));
         if (dbExists){
-            dbConnection = DriverManager.getConnection(database);
-            jooq = DSL.using(dbConnection, SQLDialect.SQLITE);
             System.out.println("successfully connected to existing database");
         }else {
-            createDB();
+            System.out.println("creating DB");
+        }
+        int version = write(SchemaMigrations::migrate);
+        if (version < SchemaMigrations.latestVersion()){
+            System.out.println("migrated DB from version " + version + " to " + SchemaMigrations.latestVersion());
         }
+        lastChange = getChangeWatermark();
+        loadLeaderboard();
     }
 
     /**
-     * closes DB connection
-     * @throws SQLException
+     * loads the most visited locations into the leaderboard, read from the timesVisited index. The locations that
+     * tie with the last one on the list are read in id order with their own query, so a large tie is not sorted.
      */
-    public void close() throws SQLException, DataAccessException{
-        if (dbConnection  != null){
-            System.out.println("closing DB connection");
-            dbConnection.close();
-            dbConnection = null;
+    private void loadLeaderboard() throws DataAccessException{
+        int capacity = leaderboard.getCapacity();
+        Field<Long> timesVisited = field("timesVisited", Long.class);
+        Record1<Long> last = read(jooq -> jooq.select(timesVisited)
+                .from(table("messages"))
+                .orderBy(timesVisited.desc())
+                .limit(1)
+                .offset(capacity - 1)
+                .fetchOne());
+        ArrayList<Result<Record3<Integer, String, Long>>> locations = new ArrayList<>();
+        locations.add(read(jooq -> jooq.select(field("id", Integer.class), field("locationName", String.class), timesVisited)
+                .from(table("messages"))
+                .where(last == null ? noCondition() : timesVisited.gt(last.value1()))
+                .fetch()));
+        if (last != null){
+            locations.add(read(jooq -> jooq.select(field("id", Integer.class), field("locationName", String.class), timesVisited)
+                    .from(table("messages"))
+                    .where(timesVisited.eq(last.value1()))
+                    .orderBy(field("id"))
+                    .limit(capacity)
+                    .fetch()));
+        }
+        for (Result<Record3<Integer, String, Long>> result : locations){
+            result.forEach(location -> leaderboard.load(location.value1(), location.value2(), location.value3()));
         }
+        leaderboard.rebuild();
     }
 
     /**
-     * creates DB and connects to it
+     * reads the stored visits of locations for the leaderboard, leaving out the ones that could not get on it
+     * @param ids
+     * @param minVisits
+     * @return
+     */
+    private List<VisitLeaderboard.Entry> loadLeaderboardEntries(Collection<Integer> ids, long minVisits) throws DataAccessException{
+        Field<Long> timesVisited = field("timesVisited", Long.class);
+        return read(jooq -> jooq.select(field("id", Integer.class), field("locationName", String.class), timesVisited)
+                .from(table("messages"))
+                .where(field("id", Integer.class).in(ids))
+                .and(timesVisited.ge(minVisits))
+                .fetch(location -> new VisitLeaderboard.Entry(location.value1(), location.value2(), location.value3())));
+    }
+
+    /**
+     * writes pending visits and closes DB connections
      * @throws SQLException
      */
-    private void createDB () throws DataAccessException, SQLException {
-        dbConnection = DriverManager.getConnection(database);
-        jooq = DSL.using(dbConnection, SQLDialect.SQLITE);
-        System.out.println("creating DB");
-
-        if (dbConnection != null){
-            jooq.createTableIfNotExists("users")
-                    .column("username", SQLDataType.VARCHAR(255).nullable(false))
-                    .column("password", SQLDataType.VARCHAR(255).nullable(false))
-                    .column("salt", SQLDataType.VARCHAR(255).nullable(false))
-                    .column("email", SQLDataType.VARCHAR(255).nullable(false))
-                    .column("userNickname", SQLDataType.VARCHAR(255).nullable(false))
-                    .constraints(
-                            constraint().primaryKey("username")
-                    )
-                    .execute();
-
-            jooq.createTableIfNotExists("messages")
-                    .column("id", SQLDataType.INTEGER.identity(true))
-                    .column("locationName", SQLDataType.VARCHAR(255).nullable(false))
-                    .column("locationDescription", SQLDataType.VARCHAR(255).nullable(false))
-                    .column("locationCity", SQLDataType.VARCHAR(255).nullable(false))
-                    .column("locationCountry", SQLDataType.VARCHAR(255).nullable(false))
-                    .column("locationStreetAddress",SQLDataType.VARCHAR(255).nullable(false))
-                    .column("originalPostingTime", SQLDataType.BIGINT.nullable(false))
-                    .column("originalPoster", SQLDataType.VARCHAR(255).nullable(false))
-                    .column("latitude",SQLDataType.DOUBLE.nullable(true))
-                    .column("longitude",SQLDataType.DOUBLE.nullable(true))
-                    .column("weather",SQLDataType.DOUBLE.nullable(true))
-                    .column("timesVisited", SQLDataType.INTEGER.nullable(false))
-                    .column("timeModified", SQLDataType.BIGINT.nullable(true))
-                    .column("updateReason", SQLDataType.VARCHAR(255).nullable(true))
-                    .constraints(
-                            constraint().primaryKey("id")
-                    )
-                    .execute();
-
-            jooq.createTableIfNotExists("tours")
-                    .column("id", SQLDataType.INTEGER.identity(true))
-                    .column("tourName", SQLDataType.VARCHAR(255).nullable(false))
-                    .column("tourDescription", SQLDataType.VARCHAR(255).nullable(false))
-                    .column("locations", SQLDataType.VARCHAR(255).nullable(false))
-                    .constraints(
-                            constraint().primaryKey("id")
-                    )
-                    .execute();
-            System.out.println("DB creation successful");
+    public synchronized void close() throws SQLException, DataAccessException{
+        visits.close();
+        if (connections != null){
+            try {
+                // refreshes the statistics the query planner uses to pick indexes for the filtered listings
+                write(jooq -> jooq.execute("PRAGMA optimize"));
+            } catch (DataAccessException e){
+                System.out.println("Error optimizing DB");
+                e.printStackTrace();
+            }
+            System.out.println("closing DB connections");
+            connections.close();
+            connections = null;
+        }
+    }
+
+    /**
+     * runs a query on one of the read connections. Any number of these can run at the same time as a write.
+     * @param query
+     * @return result of the query
+     */
+    private <T> T read(Function<DSLContext, T> query) throws DataAccessException {
+        DSLContext jooq = connections.borrowReader();
+        try {
+            return query.apply(jooq);
+        } finally {
+            connections.releaseReader(jooq);
+        }
+    }
+
+    /**
+     * runs a query on one of the read connections and keeps the connection until the returned stream is closed
+     * @param query
+     * @return
+     */
+    private <T> Stream<T> readStream(Function<DSLContext, Stream<T>> query) throws DataAccessException {
+        DSLContext jooq = connections.borrowReader();
+        try {
+            return query.apply(jooq).onClose(() -> connections.releaseReader(jooq));
+        } catch (RuntimeException e) {
+            connections.releaseReader(jooq);
+            throw e;
+        }
+    }
+
+    /**
+     * runs a cached prepared statement on one of the read connections and streams the rows as messages,
+     * with the visits that are not written yet added.
+     * The statement and the connection are given back when the returned stream is closed.
+     * @param sql selects {@link MessageMapper#COLUMNS}
+     * @param parameters
+     * @return
+     */
+    private Stream<Message> queryMessages(String sql, Object... parameters) throws DataAccessException {
+        return visits.read(() -> {
+            Map<Integer, Long> pending = visits.pendingVisits();
+            return queryStoredMessages(sql, parameters).map(message -> withPendingVisits(message, pending));
+        });
+    }
+
+    /**
+     * like {@link #queryMessages(String, Object...)} but gives the messages as they are stored in the DB
+     * @param sql selects {@link MessageMapper#COLUMNS}
+     * @param parameters
+     * @return
+     */
+    private Stream<Message> queryStoredMessages(String sql, Object... parameters) throws DataAccessException {
+        DSLContext jooq = connections.borrowReader();
+        StatementCache statements = connections.statements(jooq);
+        PreparedStatement statement = null;
+        try {
+            statement = statements.borrow(sql);
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            ResultSet rows = statement.executeQuery();
+            PreparedStatement query = statement;
+            return StreamSupport.stream(new MessageCursor(rows), false).onClose(() -> {
+                try {
+                    rows.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+                statements.release(sql, query);
+                connections.releaseReader(jooq);
+            });
+        } catch (SQLException | RuntimeException e) {
+            if (statement != null) {
+                statements.release(sql, statement);
+            }
+            connections.releaseReader(jooq);
+            throw e instanceof SQLException ? new DataAccessException("Error reading messages", e) : (RuntimeException) e;
+        }
+    }
+
+    /**
+     * reads messages from a JDBC result one row at a time
+     */
+    private class MessageCursor extends Spliterators.AbstractSpliterator<Message> {
+        private final ResultSet rows;
+
+        MessageCursor(ResultSet rows) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.rows = rows;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Message> action) {
+            try {
+                if (!rows.next()) {
+                    return false;
+                }
+                action.accept(MessageMapper.fromResultSet(rows, 1));
+                return true;
+            } catch (SQLException e) {
+                throw new DataAccessException("Error reading messages", e);
+            }
+        }
+    }
+
+    /**
+     * runs a statement on the writer connection, one write at a time
+     * @param statement
+     * @return result of the statement
+     */
+    private <T> T write(Function<DSLContext, T> statement) throws DataAccessException {
+        DSLContext jooq = connections.lockWriter();
+        try {
+            return statement.apply(jooq);
+        } finally {
+            connections.releaseWriter();
         }
     }
 
     /**
      * adds message data to the database
      * @param message
+     * @return id of the new message
      */
-    public void addMessage(Message message) throws DataAccessException {
-        jooq.insertInto(table("messages"), field("locationName"), field("locationDescription"),field("locationCity"),
+    public Integer addMessage(Message message) throws DataAccessException {
+        Integer id = write(jooq -> jooq.insertInto(table("messages"), field("locationName"), field("locationDescription"),field("locationCity"),
                         field("locationCountry"), field("locationStreetAddress"), field("originalPoster"), field("originalPostingTime"),
-                        field("latitude"), field("longitude"), field("weather"), field("timesVisited"), field("timeModified"), field("updateReason"))
+                        field("latitude"), field("longitude"), field("weather"), field("timesVisited"), field("timeModified"), field("updateReason"),
+                        field("lastChanged"))
                 .values(message.getLocationName(), message.getLocationDescription(), message.getLocationCity(), message.getLocationCountry(),
                         message.getLocationStreetAddress(), message.getOriginalPoster(), message.getUnixDate(), message.getLatitude(),
-                        message.getLongitude(), message.getWeather(), message.getTimesVisited(), message.getTimeModified(), message.getUpdateReason())
-                .execute();
+                        message.getLongitude(), message.getWeather(), message.getTimesVisited(), message.getTimeModified(), message.getUpdateReason(),
+                        nextChangeTime())
+                .returningResult(field("id", Integer.class))
+                .fetchOne()
+                .value1());
+        leaderboard.add(id, message.getLocationName(), message.getTimesVisited());
+        versions.messagesChanged();
+        message.setId(id);
+        if (events.hasSubscribers()){
+            publishMessages("created", List.of(message));
+        }
+        return id;
+    }
+
+    /**
+     * adds many messages in one transaction with a single batched insert
+     * @param messages
+     * @return ids of the new messages in the same order
+     */
+    public List<Integer> addMessages(List<Message> messages) throws DataAccessException {
+        if (messages.isEmpty()){
+            return new ArrayList<>();
+        }
+        long lastID = write(jooq -> jooq.transactionResult(configuration -> {
+            DSLContext transaction = DSL.using(configuration);
+            BatchBindStep batch = transaction.batch(transaction.insertInto(table("messages"), field("locationName"), field("locationDescription"),field("locationCity"),
+                            field("locationCountry"), field("locationStreetAddress"), field("originalPoster"), field("originalPostingTime"),
+                            field("latitude"), field("longitude"), field("weather"), field("timesVisited"), field("timeModified"), field("updateReason"),
+                            field("lastChanged"))
+                    .values((String) null, null, null, null, null, null, null, null, null, null, null, null, null, null));
+            long changed = nextChangeTime();
+            for (Message message : messages){
+                batch.bind(message.getLocationName(), message.getLocationDescription(), message.getLocationCity(), message.getLocationCountry(),
+                        message.getLocationStreetAddress(), message.getOriginalPoster(), message.getUnixDate(), message.getLatitude(),
+                        message.getLongitude(), message.getWeather(), message.getTimesVisited(), message.getTimeModified(), message.getUpdateReason(),
+                        changed);
+            }
+            batch.execute();
+            // the writer is the only connection that inserts, so the rows of the batch got consecutive ids ending here
+            return transaction.fetchOne("select last_insert_rowid()").get(0, Long.class);
+        }));
+
+        ArrayList<Integer> ids = new ArrayList<>(messages.size());
+        int firstID = (int) (lastID - messages.size() + 1);
+        for (int i = 0; i < messages.size(); i++){
+            Message message = messages.get(i);
+            ids.add(firstID + i);
+            leaderboard.add(firstID + i, message.getLocationName(), message.getTimesVisited());
+            message.setId(firstID + i);
+        }
+        versions.messagesChanged();
+        if (events.hasSubscribers()){
+            publishMessages("created", messages);
+        }
+        return ids;
     }
 
     /**
@@ -140,9 +375,9 @@ public class MsgServerDatabase {
         String salt = generateSalt();
         String hashedPassword = Crypt.crypt(user.getPassword(), salt);
 
-        jooq.insertInto(table("users"), field("username"), field("password"),field("salt"),field("email"), field("userNickname"))
+        write(jooq -> jooq.insertInto(table("users"), field("username"), field("password"),field("salt"),field("email"), field("userNickname"))
                 .values(user.getUsername(), hashedPassword,salt, user.getEmail(), user.getNickname())
-                .execute();
+                .execute());
     }
 
     /**
@@ -152,9 +387,36 @@ public class MsgServerDatabase {
      * @throws SQLException
      */
     public void addTour(Tour tour) throws DataAccessException, SQLException{
-        jooq.insertInto(table("tours"),field("tourName"), field("tourDescription"), field("locations"))
-                .values(tour.getTourName(),tour.getTourDescription(),tour.locationIDsToString())
-                .execute();
+        Integer id = write(jooq -> jooq.transactionResult(configuration -> {
+            DSLContext transaction = DSL.using(configuration);
+            Integer tourID = transaction.insertInto(table("tours"),field("tourName"), field("tourDescription"))
+                    .values(tour.getTourName(),tour.getTourDescription())
+                    .returningResult(field("id", Integer.class))
+                    .fetchOne()
+                    .value1();
+            insertTourLocations(transaction, tourID, tour.getLocationIDs());
+            return tourID;
+        }));
+        tour.setId(id);
+        versions.toursChanged();
+    }
+
+    /**
+     * adds the locations of a tour into the tour_locations table in one batch
+     * @param jooq
+     * @param tourID
+     * @param locationIDs in tour order
+     */
+    static void insertTourLocations(DSLContext jooq, Integer tourID, List<Integer> locationIDs) throws DataAccessException{
+        if (locationIDs.isEmpty()){
+            return;
+        }
+        BatchBindStep batch = jooq.batch(jooq.insertInto(table("tour_locations"), field("tour_id"), field("position"), field("location_id"))
+                .values((Integer) null, null, null));
+        for (int position = 0; position < locationIDs.size(); position++){
+            batch.bind(tourID, position, locationIDs.get(position));
+        }
+        batch.execute();
     }
 
     /**
@@ -177,10 +439,10 @@ public class MsgServerDatabase {
      */
     public boolean checkPassword(String username, String password) throws DataAccessException{
         String hashedPassword, salt;
-        Record record = jooq.select()
+        Record record = read(jooq -> jooq.select()
                 .from(table("users"))
                 .where(field("username").eq(username))
-                .fetchAny();
+                .fetchAny());
         if (record == null) {
             throw new IllegalStateException("User not found");
         }
@@ -189,16 +451,37 @@ public class MsgServerDatabase {
         return Crypt.crypt(password, salt).equals(hashedPassword);
     }
 
+    /**
+     * checks the password of a user with a single query
+     * @param username
+     * @param password plaintext password
+     * @return the user if the password is valid, null if it is not or the user is not found
+     */
+    public User authenticate(String username, String password) throws DataAccessException{
+        Record record = read(jooq -> jooq.select()
+                .from(table("users"))
+                .where(field("username").eq(username))
+                .fetchAny());
+        if (record == null) {
+            return null;
+        }
+        String hashedPassword = record.get("password", String.class);
+        if (!Crypt.crypt(password, record.get("salt", String.class)).equals(hashedPassword)) {
+            return null;
+        }
+        return new User(username, hashedPassword, record.get("email", String.class), record.get("userNickname", String.class));
+    }
+
     /**
      * checks if user is in database
      * @param username
      * @return
      */
-    public synchronized boolean containsUser(String username) throws DataAccessException{
-        Record record = jooq.select()
+    public boolean containsUser(String username) throws DataAccessException{
+        Record record = read(jooq -> jooq.select()
                 .from(table("users"))
                 .where(field("username").eq(username))
-                .fetchAny();
+                .fetchAny());
         return record != null;
     }
 
@@ -208,10 +491,10 @@ public class MsgServerDatabase {
      * @return
      */
     public User getUser(String username) throws DataAccessException {
-        Record record = jooq.select()
+        Record record = read(jooq -> jooq.select()
                 .from(table("users"))
                 .where(field("username").eq(username))
-                .fetchAny();
+                .fetchAny());
         if (record != null) {
             String password = record.get(field("password", String.class));
             String email = record.get(field("email", String.class));
@@ -223,20 +506,26 @@ public class MsgServerDatabase {
     }
 
     /**
-     * gets the message of given id
+     * gets the message of given id, from the message cache if it is there
      * @param id
      * @return
      * @throws DataAccessException
      */
     public Message getMessageByID(Integer id) throws DataAccessException{
-        Record record = jooq.select()
-                .from(table("messages"))
-                .where(field("id").eq(id))
-                .fetchAny();
-        if (record != null) {
-            return messageFromRecord(record);
-        }
-        return null;
+        return visits.read(() -> {
+            Message stored = messageCache.get(id);
+            if (stored == null){
+                long generation = getMessageCacheGeneration();
+                try (Stream<Message> messages = queryStoredMessages(SELECT_MESSAGE_BY_ID, id)) {
+                    stored = messages.findFirst().orElse(null);
+                }
+                if (stored == null){
+                    return null;
+                }
+                cacheMessages(List.of(stored), generation);
+            }
+            return withPendingVisits(new Message(stored));
+        });
     }
 
     /**
@@ -246,56 +535,342 @@ public class MsgServerDatabase {
      * @throws DataAccessException
      */
     public boolean containsMessage(Integer id) throws DataAccessException{
-        Record record = jooq.select()
+        return getMessageByID(id) != null;
+    }
+
+    /**
+     * gets the messages with the given ids with one query
+     * @param ids
+     * @return messages by id, ids that are not found are left out
+     * @throws DataAccessException
+     */
+    public Map<Integer, Message> getMessagesByIDs(Collection<Integer> ids) throws DataAccessException{
+        return visits.read(() -> readMessagesByIDs(ids));
+    }
+
+    private Map<Integer, Message> readMessagesByIDs(Collection<Integer> ids) throws DataAccessException{
+        HashMap<Integer, Message> messages = new HashMap<>();
+        HashSet<Integer> uncached = new HashSet<>();
+        for (Integer id : ids){
+            Message stored = messageCache.get(id);
+            if (stored != null){
+                messages.put(id, withPendingVisits(new Message(stored)));
+            } else {
+                uncached.add(id);
+            }
+        }
+        if (uncached.isEmpty()){
+            return messages;
+        }
+        long generation = getMessageCacheGeneration();
+        Result<Record> result = read(jooq -> jooq.select(MessageMapper.FIELDS)
                 .from(table("messages"))
-                .where(field("id").eq(id))
-                .fetchAny();
-        return record != null;
+                .where(field("id", Integer.class).in(uncached))
+                .fetch());
+        ArrayList<Message> stored = new ArrayList<>();
+        for (Record record : result){
+            stored.add(MessageMapper.fromRecord(record, 0));
+        }
+        cacheMessages(stored, generation);
+        for (Message message : stored){
+            messages.put(message.getId(), withPendingVisits(new Message(message)));
+        }
+        return messages;
+    }
+
+    /**
+     * checks which of the given ids have no message, with one query
+     * @param ids
+     * @return the ids that are not found
+     * @throws DataAccessException
+     */
+    public Set<Integer> missingMessageIDs(Collection<Integer> ids) throws DataAccessException{
+        HashSet<Integer> missing = new HashSet<>();
+        for (Integer id : ids){
+            if (messageCache.get(id) == null){
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()){
+            return missing;
+        }
+        List<Integer> found = read(jooq -> jooq.select(field("id", Integer.class))
+                .from(table("messages"))
+                .where(field("id", Integer.class).in(missing))
+                .fetch(field("id", Integer.class)));
+        found.forEach(missing::remove);
+        return missing;
     }
 
     /**
      * returns all messages in database as an arraylist
      * @return
      */
-    public synchronized ArrayList<Message> getMessages() throws DataAccessException{
-        ArrayList<Message> messages = new ArrayList<Message>();
+    public ArrayList<Message> getMessages() throws DataAccessException{
+        try (Stream<Message> messages = streamMessages(null, null)) {
+            return messages.collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
 
-        Result<Record> result = jooq.select()
-                .from(table("messages"))
-                .fetch();
+    /**
+     * streams messages ordered by id straight off a database cursor, so only one row is held in memory at a time.
+     * Uses the id primary key as the cursor for paging so every page costs the same regardless of how deep the
+     * client is. The returned stream must be closed to release the cursor.
+     * @param afterID id of the last message of the previous page, null to start from the beginning
+     * @param limit maximum amount of messages to return, null for all of them
+     * @return
+     */
+    public Stream<Message> streamMessages(Integer afterID, Integer limit) throws DataAccessException{
+        // one statement for every page: no cursor starts before all ids and a negative limit means no limit in SQLite
+        return queryMessages(SELECT_MESSAGES_AFTER, afterID == null ? Integer.MIN_VALUE : afterID, limit == null ? -1 : limit);
+    }
+
+    /**
+     * gets the time to mark the rows of a write as changed. Called while holding the writer, so every write gets a
+     * later time than the ones committed before it even if the clock goes back.
+     * @return
+     */
+    private long nextChangeTime(){
+        lastChange = Math.max(System.currentTimeMillis(), lastChange + 1);
+        return lastChange;
+    }
 
-        for (Record record: result){
-            messages.add(messageFromRecord(record));
+    /**
+     * gets the latest lastChanged of the messages with one probe of its index. Writes committed after this get
+     * a later time, so messages changed after the watermark can be found with {@link #streamChangedMessages}.
+     * @return the watermark, 0 if there are no messages
+     */
+    public long getChangeWatermark() throws DataAccessException{
+        // typed, a plain SQL column would be read as an int
+        Long watermark = read(jooq -> jooq.select(max(field("lastChanged", Long.class))).from(table("messages")).fetchOne().value1());
+        return watermark == null ? 0 : watermark;
+    }
+
+    /**
+     * streams the messages added or changed after one watermark up to another, oldest change first.
+     * The returned stream must be closed.
+     * @param since watermark the client got last time, changes at or before it are left out
+     * @param until watermark read before this call, changes after it are left for the next sync
+     * @return
+     */
+    public Stream<Message> streamChangedMessages(long since, long until) throws DataAccessException{
+        return queryMessages(SELECT_MESSAGES_CHANGED, since, until);
+    }
+
+    /**
+     * streams one page of messages matching the filters of a query in its sort order. The filters and the cursor
+     * are conditions of the SQL query, so the indexes on the filtered and sorted columns are used instead of
+     * reading every message. When sorting by visits the messages have the visit counts stored in the DB, without the
+     * visits that are not written yet. The returned stream must be closed.
+     * @param query
+     * @param limit maximum amount of messages to return
+     * @return
+     */
+    public Stream<Message> findMessages(MessageQuery query, int limit) throws DataAccessException{
+        Field<Integer> id = field(name("messages", "id"), Integer.class);
+        ArrayList<Condition> conditions = new ArrayList<>();
+        if (query.getCountry() != null){
+            conditions.add(field(name("messages", "locationCountry"), String.class).eq(query.getCountry()));
+        }
+        if (query.getCity() != null){
+            conditions.add(field(name("messages", "locationCity"), String.class).eq(query.getCity()));
+        }
+        if (query.getPoster() != null){
+            conditions.add(field(name("messages", "originalPoster"), String.class).eq(query.getPoster()));
+        }
+        Field<Long> posted = field(name("messages", "originalPostingTime"), Long.class);
+        if (query.getPostedAfter() != null){
+            conditions.add(posted.gt(query.getPostedAfter()));
+        }
+        if (query.getPostedBefore() != null){
+            conditions.add(posted.lt(query.getPostedBefore()));
         }
 
-        return messages;
+        SelectConditionStep<Record> select = RENDERER.select(MessageMapper.FIELDS).from(table("messages")).where(conditions);
+        Select<Record> page;
+        if (query.getSort() == MessageQuery.Sort.ID){
+            if (query.getAfterID() != null){
+                select = select.and(id.gt(query.getAfterID()));
+            }
+            page = select.orderBy(id).limit(limit);
+        } else {
+            Field<Long> sorted = query.getSort() == MessageQuery.Sort.VISITED ? field(name("messages", "timesVisited"), Long.class)
+                    : query.getSort() == MessageQuery.Sort.POSTED ? posted
+                    : field(name("messages", "timeModified"), Long.class);
+            if (query.getSort() == MessageQuery.Sort.MODIFIED){
+                // only modified messages have a modification time to sort by
+                select = select.and(sorted.isNotNull());
+            }
+            if (query.getAfterID() != null){
+                select = select.and(row(sorted, id).lt(query.getAfterValue(), query.getAfterID()));
+            }
+            page = select.orderBy(sorted.desc(), id.desc()).limit(limit);
+        }
+        if (query.getSort() == MessageQuery.Sort.VISITED){
+            // the counts sent are the stored ones that the page is sorted by, so they agree with the order and the cursor.
+            // Visits that are not written yet show up after the next flush.
+            return queryStoredMessages(page.getSQL(), page.getBindValues().toArray());
+        }
+        return queryMessages(page.getSQL(), page.getBindValues().toArray());
     }
 
     /**
-     * constructs a message from a record
-     * @param record
+     * searches messages by words in their name, description or city, best matches first.
+     * Every word must match the start of a word in the message. The returned stream must be closed.
+     * @param text words to search for, FTS5 query syntax in it is not interpreted
+     * @param limit maximum amount of messages to return
      * @return
-     * @throws IllegalArgumentException
      */
-    private Message messageFromRecord(Record record) throws IllegalArgumentException{
-        Integer id = record.get(field("id", Integer.class));
-        String locationName = record.get(field("locationName", String.class));
-        String locationDescription = record.get(field("locationDescription", String.class));
-        String locationCity = record.get(field("locationCity", String.class));
-        String locationCountry = record.get(field("locationCountry", String.class));
-        String locationStreetAddress = record.get(field("locationStreetAddress", String.class));
-        Long unixTime = record.get(field("originalPostingTime", Long.class));
-        String nickname = record.get(field("originalPoster", String.class));
-        Double latitude = record.get(field("latitude", Double.class));
-        Double longitude = record.get(field("longitude", Double.class));
-        Double weather = record.get(field("weather", Double.class));
-        Integer timesVisited = record.get(field("timesVisited", Integer.class));
-        Long timeModified = record.get(field("timeModified", Long.class));
-        String updateReason = record.get(field("updateReason", String.class));
+    public Stream<Message> searchMessages(String text, int limit) throws DataAccessException{
+        return queryMessages(SEARCH_MESSAGES, toMatchQuery(text), limit);
+    }
+
+    /**
+     * turns the words of a search into an FTS5 query of quoted prefix terms. Punctuation separates words like it does
+     * in the index, and quoting the rest keeps words like OR and NEAR from being read as operators.
+     * @param text
+     * @return the query, empty if the text has no words
+     */
+    static String toMatchQuery(String text){
+        StringBuilder query = new StringBuilder();
+        for (String word : text.split("[\\s\\p{Punct}]+")){
+            if (!word.isEmpty()){
+                query.append(query.length() == 0 ? "" : " ").append('"').append(word).append("\"*");
+            }
+        }
+        return query.toString();
+    }
+
+    /**
+     * finds the messages within a radius of a point, nearest first. The R*Tree index narrows the search down to
+     * the bounding box of the circle and only the messages in the box have their exact distance calculated.
+     * @param latitude
+     * @param longitude
+     * @param radius in meters
+     * @param limit maximum amount of messages to return
+     * @return
+     */
+    public List<Message> getMessagesNear(double latitude, double longitude, double radius, int limit) throws DataAccessException{
+        double angle = radius / Message.EARTH_RADIUS;
+        double minLatitude = latitude - Math.toDegrees(angle);
+        double maxLatitude = latitude + Math.toDegrees(angle);
+        // longitude ranges to search, a box crossing the 180th meridian is split in two
+        double[][] longitudes = {{-180, 180}};
+        if (minLatitude > -90 && maxLatitude < 90){
+            // widest longitude difference on the circle, which is at a higher latitude than the center
+            double deltaLongitude = Math.toDegrees(Math.asin(Math.sin(angle) / Math.cos(Math.toRadians(latitude))));
+            double west = longitude - deltaLongitude;
+            double east = longitude + deltaLongitude;
+            if (west < -180){
+                longitudes = new double[][]{{west + 360, 180}, {-180, east}};
+            } else if (east > 180){
+                longitudes = new double[][]{{west, 180}, {-180, east - 360}};
+            } else {
+                longitudes = new double[][]{{west, east}};
+            }
+        }
+
+        // keeps the nearest ones found so far, farthest first so it is the one replaced
+        PriorityQueue<NearbyMessage> nearest = new PriorityQueue<>(Comparator.comparingDouble((NearbyMessage nearby) -> nearby.distance).reversed());
+        for (double[] range : longitudes){
+            try (Stream<Message> candidates = queryMessages(SELECT_MESSAGES_IN_BOX, minLatitude, maxLatitude, range[0], range[1])) {
+                candidates.forEach(message -> {
+                    Double distance = message.distanceTo(latitude, longitude);
+                    if (distance == null || distance > radius){
+                        return;
+                    }
+                    if (nearest.size() < limit){
+                        nearest.add(new NearbyMessage(message, distance));
+                    } else if (distance < nearest.peek().distance){
+                        nearest.poll();
+                        nearest.add(new NearbyMessage(message, distance));
+                    }
+                });
+            }
+        }
+        ArrayList<NearbyMessage> sorted = new ArrayList<>(nearest);
+        sorted.sort(Comparator.comparingDouble(nearby -> nearby.distance));
+        return sorted.stream().map(nearby -> nearby.message).collect(Collectors.toList());
+    }
+
+    private static class NearbyMessage {
+        private final Message message;
+        private final double distance;
+
+        NearbyMessage(Message message, double distance) {
+            this.message = message;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * adds the visits that are not written to the DB yet to a message read from it, inside {@link VisitCounter#read}
+     * @param message
+     * @return the same message
+     */
+    private Message withPendingVisits(Message message){
+        long pending = visits.pendingVisits(message.getId());
+        if (pending != 0){
+            message.setTimesVisited(message.getTimesVisited() + (int) pending);
+        }
+        return message;
+    }
+
+    /**
+     * adds visits taken with {@link VisitCounter#pendingVisits()} to a message read from the DB
+     * @param message
+     * @param pending
+     * @return the same message
+     */
+    private static Message withPendingVisits(Message message, Map<Integer, Long> pending){
+        Long visits = pending.get(message.getId());
+        if (visits != null && visits != 0){
+            message.setTimesVisited(message.getTimesVisited() + visits.intValue());
+        }
+        return message;
+    }
+
+    private long getMessageCacheGeneration(){
+        synchronized (messageCache){
+            return messageCacheGeneration;
+        }
+    }
+
+    /**
+     * adds messages read from the DB to the message cache, unless a message was changed after they were read
+     * @param messages as they are stored
+     * @param generation {@link #messageCacheGeneration} from before the messages were read
+     */
+    private void cacheMessages(Collection<Message> messages, long generation){
+        synchronized (messageCache){
+            if (generation != messageCacheGeneration){
+                return;
+            }
+            for (Message message : messages){
+                messageCache.put(message.getId(), message);
+            }
+        }
+    }
 
+    /**
+     * drops changed messages from the message cache, they are read from the DB again the next time
+     * @param ids
+     */
+    private void invalidateMessages(Collection<Integer> ids){
+        synchronized (messageCache){
+            messageCacheGeneration++;
+            for (Integer id : ids){
+                messageCache.invalidate(id);
+            }
+        }
+    }
 
-        return new Message(id, locationName, locationDescription, locationCity, locationCountry, locationStreetAddress,
-                unixTime, nickname, latitude, longitude, weather, timesVisited, timeModified, updateReason);
+    /**
+     * adds the size, hits, misses and evictions of the message cache to the stats
+     * @param stats
+     */
+    public void registerStats(StatsHandler stats){
+        messageCache.registerStats(stats, "messages.cache");
     }
 
     /**
@@ -303,96 +878,221 @@ public class MsgServerDatabase {
      * @return
      */
     public ArrayList<Tour> getTours(){
-        ArrayList<Tour> tours = new ArrayList<Tour>();
+        try (Stream<Tour> tours = streamTours(null)) {
+            return tours.collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    /**
+     * streams tours ordered by id with their locations. Uses two cursors that are read side by side:
+     * one over the tours and one over tour_locations joined with messages, so the number of queries does not
+     * depend on the number of tours. The returned stream must be closed to release the cursors.
+     * @param locationID only tours that include this location, null for all tours
+     * @return
+     */
+    public Stream<Tour> streamTours(Integer locationID) throws DataAccessException{
+        Condition tourFilter = noCondition();
+        Condition stopFilter = noCondition();
+        if (locationID != null){
+            Select<Record1<Integer>> toursWithLocation = select(field(name("matching", "tour_id"), Integer.class))
+                    .from(table(name("tour_locations")).as("matching"))
+                    .where(field(name("matching", "location_id")).eq(locationID));
+            tourFilter = field(name("tours", "id"), Integer.class).in(toursWithLocation);
+            stopFilter = field(name("tour_locations", "tour_id"), Integer.class).in(toursWithLocation);
+        }
+        Condition toursCondition = tourFilter;
+        Condition stopsCondition = stopFilter;
+
+        return visits.read(() -> readStream(jooq -> {
+            Map<Integer, Long> pending = visits.pendingVisits();
+            ArrayList<SelectFieldOrAsterisk> columns = new ArrayList<>();
+            columns.add(field(name("tour_locations", "tour_id")));
+            columns.addAll(Arrays.asList(MessageMapper.FIELDS));
+            Stream<Record> stops = jooq.select(columns)
+                    .from(table(name("tour_locations")))
+                    .join(table(name("messages"))).on(field(name("messages", "id")).eq(field(name("tour_locations", "location_id"))))
+                    .where(stopsCondition)
+                    .orderBy(field(name("tour_locations", "tour_id")), field(name("tour_locations", "position")))
+                    .fetchStream();
+            try {
+                TourLocationsJoin join = new TourLocationsJoin(stops.iterator(), pending);
+                return jooq.select()
+                        .from(table(name("tours")))
+                        .where(toursCondition)
+                        .orderBy(field(name("tours", "id")))
+                        .fetchStream()
+                        .map(record -> join.attach(tourFromRecord(record)))
+                        .onClose(stops::close);
+            } catch (RuntimeException e) {
+                stops.close();
+                throw e;
+            }
+        }));
+    }
+
+    /**
+     * adds locations from a cursor of tour_locations joined with messages to tours that are read in the same order
+     */
+    private class TourLocationsJoin {
+        private final Iterator<Record> stops;
+        private final Map<Integer, Long> pending;
+        private Record next;
 
-        Result<Record> result = jooq.select()
-                .from(table("tours"))
-                .fetch();
+        TourLocationsJoin(Iterator<Record> stops, Map<Integer, Long> pending) {
+            this.stops = stops;
+            this.pending = pending;
+            next = stops.hasNext() ? stops.next() : null;
+        }
 
-        for (Record record: result){
-            tours.add(tourFromRecord(record));
+        /**
+         * adds the locations of the tour, skipping rows of tours that come before it
+         * @param tour
+         * @return the same tour
+         */
+        Tour attach(Tour tour) {
+            while (next != null && next.get(0, Integer.class) <= tour.getId()) {
+                if (next.get(0, Integer.class).equals(tour.getId())) {
+                    Message location = withPendingVisits(MessageMapper.fromRecord(next, 1), pending);
+                    tour.getLocationIDs().add(location.getId());
+                    tour.getLocations().add(location);
+                }
+                next = stops.hasNext() ? stops.next() : null;
+            }
+            return tour;
         }
-        return tours;
     }
 
     /**
-     * constructs a tour from a record
+     * constructs a tour without its locations from a record
      * @param record
      * @return
      * @throws IllegalArgumentException
      */
     private Tour tourFromRecord(Record record) throws IllegalArgumentException{
+        Integer id = record.get(field("id", Integer.class));
         String tourName = record.get(field("tourName"), String.class);
         String tourDescription = record.get(field("tourDescription", String.class));
-        String locationIDs = record.get(field("locations", String.class));
-        ArrayList<Integer> locations = locationsFromStr(locationIDs);
 
-        return new Tour(tourName, tourDescription, locations);
+        return new Tour(id, tourName, tourDescription);
     }
 
     /**
-     * parses a string with location ids into an arraylist of integers
-     * @param locationIDs
-     * @return
+     * adds one visit to a location with given id. The visit is counted in memory and written to the DB
+     * with other visits later, reads include it right away. Nothing is read for it, the leaderboard catches up
+     * with the stored counts when the visits are flushed.
+     * @param id
      */
-    public ArrayList<Integer> locationsFromStr(String locationIDs){
-        String[] splitIDs = locationIDs.split(",");
-        ArrayList<Integer> locations = new ArrayList<>();
+    public void visitLocation(Integer id){
+        visits.visit(id);
+        versions.messagesChanged();
+    }
 
-        for (String splitID : splitIDs) {
-            locations.add(Integer.parseInt(splitID));
-        }
-        return locations;
+    /**
+     * writes the pending visits to the DB now instead of at the next flush
+     */
+    void flushVisits() throws DataAccessException{
+        visits.flush();
     }
 
     /**
-     * adds one visit to a location with given id
-     * @param id
+     * adds a batch of visits to the DB in one transaction
+     * @param visitsByID added visits for each location id
      */
-    public void visitLocation(Integer id){
-        jooq.update(table("messages"))
-                .set(field("timesVisited", Integer.class), field("timesVisited", Integer.class).plus(1))
-                .where(field("id").eq(id))
-                .execute();
+    private void addVisits(Map<Integer, Long> visitsByID) throws DataAccessException{
+        write(jooq -> {
+            // the visits stop being pending and the cached messages are dropped in the same step as the commit,
+            // so a read sees the batch either as pending or in the DB
+            visits.commit(() -> {
+                jooq.transactionResult(configuration -> {
+                    BatchBindStep batch = DSL.using(configuration).batch(DSL.using(configuration).update(table("messages"))
+                            .set(field("timesVisited", Long.class), field("timesVisited", Long.class).plus((Long) null))
+                            .set(field("lastChanged", Long.class), (Long) null)
+                            .where(field("id", Integer.class).eq((Integer) null)));
+                    long changed = nextChangeTime();
+                    for (Map.Entry<Integer, Long> entry : visitsByID.entrySet()){
+                        batch.bind(entry.getValue(), changed, entry.getKey());
+                    }
+                    return batch.execute();
+                });
+                invalidateMessages(visitsByID.keySet());
+                leaderboard.stored(visitsByID);
+            });
+            return null;
+        });
+        try {
+            leaderboard.promote();
+        } catch (DataAccessException e) {
+            // the batch is committed, the locations that could climb onto the leaderboard are read on the next flush
+            System.out.println("Error reading visited locations for the leaderboard, retrying on next flush");
+            e.printStackTrace();
+        }
+        // sort=visited listings and changedSince read the stored counts, which only change here
+        versions.messagesChanged();
+        if (events.hasSubscribers()){
+            JSONObject deltas = new JSONObject();
+            for (Map.Entry<Integer, Long> entry : visitsByID.entrySet()){
+                deltas.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            events.publish("visits", new JSONObject().put("visits", deltas));
+        }
     }
 
     /**
-     * gets information required for topFive visit info
-     * @param location
-     * @return
+     * writes the temperature of a batch of messages in one transaction
+     * @param weatherByID temperature for each message id
      */
-    private JSONObject getVisitInfo(Record location){
-        JSONObject json = new JSONObject();
-        json.put("locationID", location.get(field("id"), Integer.class));
-        json.put("locationName", location.get(field("locationName"), String.class));
-        json.put("timesVisited", location.get(field("timesVisited"), Integer.class));
-        return json;
+    public void updateWeather(Map<Integer, Double> weatherByID) throws DataAccessException{
+        write(jooq -> jooq.transactionResult(configuration -> {
+            BatchBindStep batch = DSL.using(configuration).batch(DSL.using(configuration).update(table("messages"))
+                    .set(field("weather", Double.class), (Double) null)
+                    .set(field("lastChanged", Long.class), (Long) null)
+                    .where(field("id", Integer.class).eq((Integer) null)));
+            long changed = nextChangeTime();
+            for (Map.Entry<Integer, Double> entry : weatherByID.entrySet()){
+                batch.bind(entry.getValue(), changed, entry.getKey());
+            }
+            return batch.execute();
+        }));
+        invalidateMessages(weatherByID.keySet());
+        versions.messagesChanged();
+        if (events.hasSubscribers()){
+            publishMessages("updated", getMessagesByIDs(weatherByID.keySet()).values());
+        }
     }
 
     /**
-     * gets the top five locations and constructs a JSONArray with all necessary info for the /topfive realm
+     * gets the k most visited locations and constructs a JSONArray with all necessary info for the /topfive realm.
+     * Served from the in memory leaderboard, the database is not queried.
+     * @param k at most {@link #getTopVisitedCapacity()}
      * @return
      */
-    public JSONArray getTopFive(){
-        Result<Record> result = jooq.select()
-                .from(table("messages"))
-                .orderBy(field("timesVisited").desc())
-                .limit(5)
-                .fetch();
+    public JSONArray getTopVisited(int k){
         JSONArray array = new JSONArray();
-        for (Record location : result){
-            array.put(getVisitInfo(location));
+        for (VisitLeaderboard.Entry location : visits.read(() -> leaderboard.top(k))){
+            JSONObject json = new JSONObject();
+            json.put("locationID", location.getId());
+            json.put("locationName", location.getName());
+            json.put("timesVisited", location.getVisits());
+            array.put(json);
         }
         return array;
     }
 
+    /**
+     * gets the largest k that {@link #getTopVisited(int)} supports
+     * @return
+     */
+    public int getTopVisitedCapacity(){
+        return leaderboard.getCapacity();
+    }
+
     /**
      * Updates message information in the database
      * @param id
      * @param message
      */
     public void updateMessage(Integer id, Message message) {
-        jooq.update(table("messages"))
+        write(jooq -> jooq.update(table("messages"))
                 .set(field("locationName", String.class), message.getLocationName())
                 .set(field("locationDescription", String.class), message.getLocationDescription())
                 .set(field("locationCity", String.class), message.getLocationCity())
@@ -405,7 +1105,46 @@ public class MsgServerDatabase {
                 .set(field("weather", Double.class), message.getWeather())
                 .set(field("timeModified", Long.class), System.currentTimeMillis())
                 .set(field("updateReason",String.class), message.getUpdateReason())
+                .set(field("lastChanged", Long.class), nextChangeTime())
                 .where(field("id").eq(id))
-                .execute();
+                .execute());
+        invalidateMessages(List.of(id));
+        leaderboard.rename(id, message.getLocationName());
+        versions.messagesChanged();
+        if (events.hasSubscribers()){
+            Message updated = getMessageByID(id);
+            if (updated != null){
+                publishMessages("updated", List.of(updated));
+            }
+        }
+    }
+
+    /**
+     * sends messages to the subscribers of /events
+     * @param event "created" or "updated"
+     * @param messages
+     */
+    private void publishMessages(String event, Collection<Message> messages){
+        JSONArray json = new JSONArray();
+        for (Message message : messages){
+            json.put(message.toJSONObject());
+        }
+        events.publish(event, new JSONObject().put("messages", json));
+    }
+
+    /**
+     * gets the broadcaster that sends changes of messages and visits to the subscribers of /events
+     * @return
+     */
+    public EventBroadcaster getEvents(){
+        return events;
+    }
+
+    /**
+     * gets the version counters of the tables, bumped after every change
+     * @return
+     */
+    public DataVersions getVersions(){
+        return versions;
     }
 }
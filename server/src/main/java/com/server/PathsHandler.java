@@ -12,8 +12,10 @@ import java.net.HttpURLConnection;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class PathsHandler implements HttpHandler {
 
@@ -59,32 +61,44 @@ public class PathsHandler implements HttpHandler {
 
     }
 
+    /**
+     * handles GET requests by sending tours to the user as a JSONArray.
+     * With ?location=id only the tours that go through that location are sent.
+     * @param exchange
+     * @throws IOException
+     */
     private void handleGET(HttpExchange exchange) throws IOException {
-        JSONArray jsonArray = new JSONArray();
-        ArrayList<Tour> tours = new ArrayList<>();
-        try {
-            tours = database.getTours();
-        }
-        catch (DataAccessException | IllegalArgumentException e){
-            Server.sendResponse(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "Error while getting tours");
-            e.printStackTrace();
+        Integer locationID = null;
+        String location = Server.queryParams(exchange).get("location");
+        if (location != null) {
+            try {
+                locationID = Integer.parseInt(location);
+            } catch (NumberFormatException e) {
+                Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "location must be a location id");
+                return;
+            }
         }
-
-        if (tours.isEmpty()){
-            exchange.sendResponseHeaders(HttpURLConnection.HTTP_NO_CONTENT, -1);
+        if (Server.notModified(exchange, database.getVersions().toursTag())){
+            return;
         }
-        for (Tour tour : tours) {
-            jsonArray.put(tourToJSONObject(tour));
+        try (Stream<Tour> tours = database.streamTours(locationID)) {
+            Iterator<Tour> iterator = tours.iterator();
+            if (!iterator.hasNext()){
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NO_CONTENT, -1);
+                return;
+            }
+            try (JSONStreamWriter writer = Server.startJSONStream(exchange)) {
+                writer.beginArray();
+                while (iterator.hasNext()) {
+                    writer.value(tourToJSONObject(iterator.next()));
+                }
+                writer.endArray();
+            }
         }
-        byte[] bytes = jsonArray.toString().getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, bytes.length);
-        try (OutputStream output = exchange.getResponseBody()) {
-            output.write(bytes);
-        } catch (Exception e) {
+        catch (DataAccessException | IllegalArgumentException e){
+            Server.sendError(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "Error while getting tours");
             e.printStackTrace();
-            Server.sendResponse(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "error writing tours");
         }
-
     }
 
     /**
@@ -96,12 +110,10 @@ public class PathsHandler implements HttpHandler {
         ArrayList<Integer> locations = new ArrayList<>();
         for (int i = 0; i < jsonLocations.length(); i++){
             JSONObject location = jsonLocations.getJSONObject(i);
-            Integer id = location.getInt("locationID");
-            if (!database.containsMessage(id)){
-                throw new NoSuchElementException("location with given ID does not exist");
-            }else {
-                locations.add(id);
-            }
+            locations.add(location.getInt("locationID"));
+        }
+        if (!database.missingMessageIDs(locations).isEmpty()){
+            throw new NoSuchElementException("location with given ID does not exist");
         }
         return locations;
     }
@@ -116,13 +128,11 @@ public class PathsHandler implements HttpHandler {
         json.put("tour_name", tour.getTourName());
         json.put("tourDescription", tour.getTourDescription());
 
-        JSONArray locations = new JSONArray();
-        ArrayList<Integer> locationIDs = tour.getLocationIDs();
-        for (Integer locationID : locationIDs){
-            Message location = database.getMessageByID(locationID);
-            locations.put(location.toJSONObject());
+        JSONArray jsonLocations = new JSONArray();
+        for (Message location : tour.getLocations()){
+            jsonLocations.put(location.toJSONObject());
         }
-        json.put("locations", locations);
+        json.put("locations", jsonLocations);
         return json;
     }
 }
@@ -0,0 +1,252 @@
+package com.server;
+
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.jooq.impl.DSL.*;
+
+/**
+ * Ordered changes to the database schema. The version of a database is kept in PRAGMA user_version
+ * and only the migrations after it are run, each in its own transaction together with the version bump.
+ * New changes are added to the end of the list, existing migrations must not be changed.
+ */
+public class SchemaMigrations {
+
+    private interface Migration {
+        void apply(DSLContext jooq) throws DataAccessException;
+    }
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            SchemaMigrations::createTables,
+            SchemaMigrations::moveTourLocations,
+            SchemaMigrations::addMessageIndexes,
+            SchemaMigrations::addLocationIndex,
+            SchemaMigrations::addTextIndex,
+            SchemaMigrations::addPostingTimeIndexes,
+            SchemaMigrations::addLastChanged,
+            SchemaMigrations::addListingIndexes
+    );
+
+    private SchemaMigrations() {
+    }
+
+    /**
+     * gets the version a fully migrated database has
+     * @return
+     */
+    public static int latestVersion() {
+        return MIGRATIONS.size();
+    }
+
+    /**
+     * runs the migrations the database does not have yet. Only reads the version if it is up to date.
+     * @param jooq writer connection
+     * @return version of the database before migrating
+     */
+    public static int migrate(DSLContext jooq) throws DataAccessException {
+        int version = jooq.fetchOne("PRAGMA user_version").get(0, Integer.class);
+        for (int next = version; next < MIGRATIONS.size(); next++) {
+            Migration migration = MIGRATIONS.get(next);
+            int nextVersion = next + 1;
+            jooq.transaction(configuration -> {
+                DSLContext transaction = DSL.using(configuration);
+                migration.apply(transaction);
+                // user_version is stored in the database header, so it is committed or rolled back with the migration
+                transaction.execute("PRAGMA user_version = " + nextVersion);
+            });
+        }
+        return version;
+    }
+
+    /**
+     * 1: users, messages and tours tables. Databases created before versioning already have these.
+     * @param jooq
+     */
+    private static void createTables(DSLContext jooq) throws DataAccessException {
+        jooq.createTableIfNotExists("users")
+                .column("username", SQLDataType.VARCHAR(255).nullable(false))
+                .column("password", SQLDataType.VARCHAR(255).nullable(false))
+                .column("salt", SQLDataType.VARCHAR(255).nullable(false))
+                .column("email", SQLDataType.VARCHAR(255).nullable(false))
+                .column("userNickname", SQLDataType.VARCHAR(255).nullable(false))
+                .constraints(
+                        constraint().primaryKey("username")
+                )
+                .execute();
+
+        jooq.createTableIfNotExists("messages")
+                .column("id", SQLDataType.INTEGER.identity(true))
+                .column("locationName", SQLDataType.VARCHAR(255).nullable(false))
+                .column("locationDescription", SQLDataType.VARCHAR(255).nullable(false))
+                .column("locationCity", SQLDataType.VARCHAR(255).nullable(false))
+                .column("locationCountry", SQLDataType.VARCHAR(255).nullable(false))
+                .column("locationStreetAddress",SQLDataType.VARCHAR(255).nullable(false))
+                .column("originalPostingTime", SQLDataType.BIGINT.nullable(false))
+                .column("originalPoster", SQLDataType.VARCHAR(255).nullable(false))
+                .column("latitude",SQLDataType.DOUBLE.nullable(true))
+                .column("longitude",SQLDataType.DOUBLE.nullable(true))
+                .column("weather",SQLDataType.DOUBLE.nullable(true))
+                .column("timesVisited", SQLDataType.INTEGER.nullable(false))
+                .column("timeModified", SQLDataType.BIGINT.nullable(true))
+                .column("updateReason", SQLDataType.VARCHAR(255).nullable(true))
+                .constraints(
+                        constraint().primaryKey("id")
+                )
+                .execute();
+
+        jooq.createTableIfNotExists("tours")
+                .column("id", SQLDataType.INTEGER.identity(true))
+                .column("tourName", SQLDataType.VARCHAR(255).nullable(false))
+                .column("tourDescription", SQLDataType.VARCHAR(255).nullable(false))
+                .constraints(
+                        constraint().primaryKey("id")
+                )
+                .execute();
+    }
+
+    /**
+     * 2: tour_locations table that holds the locations of each tour in order, indexed by location for reverse lookups.
+     * Tours of older databases have their locations in a comma separated tours.locations column, those are moved over.
+     * @param jooq
+     */
+    private static void moveTourLocations(DSLContext jooq) throws DataAccessException {
+        jooq.createTableIfNotExists("tour_locations")
+                .column("tour_id", SQLDataType.INTEGER.nullable(false))
+                .column("position", SQLDataType.INTEGER.nullable(false))
+                .column("location_id", SQLDataType.INTEGER.nullable(false))
+                .constraints(
+                        constraint().primaryKey("tour_id", "position")
+                )
+                .execute();
+        jooq.createIndexIfNotExists("tour_locations_location_id")
+                .on("tour_locations", "location_id")
+                .execute();
+
+        boolean oldFormat = jooq.fetchExists(selectOne()
+                .from("pragma_table_info('tours')")
+                .where(field("name").eq("locations")));
+        if (!oldFormat) {
+            return;
+        }
+        System.out.println("moving tour locations into tour_locations table");
+        for (Record record : jooq.select(field("id", Integer.class), field("locations", String.class)).from(table("tours")).fetch()) {
+            ArrayList<Integer> locationIDs = new ArrayList<>();
+            for (String locationID : record.get(1, String.class).split(",")) {
+                if (!locationID.isEmpty()) {
+                    locationIDs.add(Integer.parseInt(locationID));
+                }
+            }
+            MsgServerDatabase.insertTourLocations(jooq, record.get(0, Integer.class), locationIDs);
+        }
+        jooq.alterTable("tours").dropColumn("locations").execute();
+    }
+
+    /**
+     * 3: indexes for the leaderboard, lookups by poster or place and listing recently modified messages
+     * @param jooq
+     */
+    private static void addMessageIndexes(DSLContext jooq) throws DataAccessException {
+        jooq.createIndexIfNotExists("messages_timesVisited").on("messages", "timesVisited").execute();
+        jooq.createIndexIfNotExists("messages_originalPoster").on("messages", "originalPoster").execute();
+        jooq.createIndexIfNotExists("messages_location").on("messages", "locationCountry", "locationCity").execute();
+        jooq.createIndexIfNotExists("messages_timeModified").on("messages", "timeModified").execute();
+    }
+
+    /**
+     * 4: R*Tree index of message coordinates for radius queries, kept in sync with the messages table by triggers.
+     * Messages without coordinates are left out of it.
+     * @param jooq
+     */
+    private static void addLocationIndex(DSLContext jooq) throws DataAccessException {
+        jooq.execute("CREATE VIRTUAL TABLE IF NOT EXISTS messages_rtree "
+                + "USING rtree(message_id, minLatitude, maxLatitude, minLongitude, maxLongitude)");
+        jooq.execute("CREATE TRIGGER IF NOT EXISTS messages_rtree_insert AFTER INSERT ON messages "
+                + "WHEN new.latitude IS NOT NULL AND new.longitude IS NOT NULL BEGIN "
+                + "INSERT INTO messages_rtree VALUES (new.id, new.latitude, new.latitude, new.longitude, new.longitude); END");
+        jooq.execute("CREATE TRIGGER IF NOT EXISTS messages_rtree_update AFTER UPDATE OF latitude, longitude ON messages BEGIN "
+                + "DELETE FROM messages_rtree WHERE message_id = old.id; "
+                + "INSERT INTO messages_rtree SELECT new.id, new.latitude, new.latitude, new.longitude, new.longitude "
+                + "WHERE new.latitude IS NOT NULL AND new.longitude IS NOT NULL; END");
+        jooq.execute("CREATE TRIGGER IF NOT EXISTS messages_rtree_delete AFTER DELETE ON messages BEGIN "
+                + "DELETE FROM messages_rtree WHERE message_id = old.id; END");
+        jooq.execute("INSERT INTO messages_rtree SELECT id, latitude, latitude, longitude, longitude FROM messages "
+                + "WHERE latitude IS NOT NULL AND longitude IS NOT NULL");
+    }
+
+    /**
+     * 5: FTS5 full-text index of message names, descriptions and cities. It is an external content table that reads
+     * the text from the messages table, so only the index is stored and triggers keep it up to date.
+     * Existing messages are indexed with a rebuild.
+     * @param jooq
+     */
+    private static void addTextIndex(DSLContext jooq) throws DataAccessException {
+        jooq.execute("CREATE VIRTUAL TABLE IF NOT EXISTS messages_fts USING fts5(locationName, locationDescription, locationCity, "
+                + "content='messages', content_rowid='id', tokenize='unicode61 remove_diacritics 2')");
+        jooq.execute("CREATE TRIGGER IF NOT EXISTS messages_fts_insert AFTER INSERT ON messages BEGIN "
+                + "INSERT INTO messages_fts(rowid, locationName, locationDescription, locationCity) "
+                + "VALUES (new.id, new.locationName, new.locationDescription, new.locationCity); END");
+        jooq.execute("CREATE TRIGGER IF NOT EXISTS messages_fts_update "
+                + "AFTER UPDATE OF locationName, locationDescription, locationCity ON messages BEGIN "
+                + "INSERT INTO messages_fts(messages_fts, rowid, locationName, locationDescription, locationCity) "
+                + "VALUES ('delete', old.id, old.locationName, old.locationDescription, old.locationCity); "
+                + "INSERT INTO messages_fts(rowid, locationName, locationDescription, locationCity) "
+                + "VALUES (new.id, new.locationName, new.locationDescription, new.locationCity); END");
+        jooq.execute("CREATE TRIGGER IF NOT EXISTS messages_fts_delete AFTER DELETE ON messages BEGIN "
+                + "INSERT INTO messages_fts(messages_fts, rowid, locationName, locationDescription, locationCity) "
+                + "VALUES ('delete', old.id, old.locationName, old.locationDescription, old.locationCity); END");
+        jooq.execute("INSERT INTO messages_fts(messages_fts) VALUES ('rebuild')");
+    }
+
+    /**
+     * 6: indexes for listing messages by posting time, of everyone or of one poster. The poster index is replaced by
+     * one that also has the posting time, it works for lookups by poster alone as well. The table is analyzed so the
+     * query planner knows how selective each index is when a listing has several filters.
+     * @param jooq
+     */
+    private static void addPostingTimeIndexes(DSLContext jooq) throws DataAccessException {
+        jooq.createIndexIfNotExists("messages_originalPostingTime").on("messages", "originalPostingTime").execute();
+        jooq.createIndexIfNotExists("messages_originalPoster_originalPostingTime")
+                .on("messages", "originalPoster", "originalPostingTime")
+                .execute();
+        jooq.dropIndexIfExists("messages_originalPoster").execute();
+        jooq.execute("ANALYZE");
+    }
+
+    /**
+     * 7: lastChanged column with the time a message was last added, edited, visited or given weather, for delta syncs.
+     * Existing messages get the time they were modified or posted, but never a time after the migration.
+     * @param jooq
+     */
+    private static void addLastChanged(DSLContext jooq) throws DataAccessException {
+        jooq.alterTable("messages")
+                .addColumn("lastChanged", SQLDataType.BIGINT.nullable(false).defaultValue(0L))
+                .execute();
+        jooq.update(table("messages"))
+                .set(field("lastChanged", Long.class), least(coalesce(field("timeModified", Long.class), field("originalPostingTime", Long.class)),
+                        inline(System.currentTimeMillis())))
+                .execute();
+        jooq.createIndexIfNotExists("messages_lastChanged").on("messages", "lastChanged").execute();
+    }
+
+    /**
+     * 8: indexes for listing the messages of a country or a city sorted by visits, posting time or modification time,
+     * so the listing reads the first page straight from the index instead of sorting every message of the place.
+     * The id that breaks ties is the rowid, which every index ends with. A country and a city together use the city
+     * index. Listings of one poster sorted by anything else than the posting time still sort the poster's messages.
+     * @param jooq
+     */
+    private static void addListingIndexes(DSLContext jooq) throws DataAccessException {
+        for (String place : new String[]{"locationCountry", "locationCity"}) {
+            for (String sorted : new String[]{"timesVisited", "originalPostingTime", "timeModified"}) {
+                jooq.createIndexIfNotExists("messages_" + place + "_" + sorted).on("messages", place, sorted).execute();
+            }
+        }
+        jooq.execute("ANALYZE");
+    }
+}
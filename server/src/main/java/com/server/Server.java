@@ -1,10 +1,19 @@
 package com.server;
 
 import java.io.*;
+import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import com.sun.net.httpserver.*;
 
@@ -16,6 +25,10 @@ import javax.net.ssl.TrustManagerFactory;
 public class Server {
 
     private static final MsgServerDatabase database = new MsgServerDatabase("jdbc:sqlite:", "msgDB");
+    // smaller responses are sent as they are, compressing them would save less than the headers cost
+    private static final int COMPRESSION_THRESHOLD = Integer.getInteger("server.compressionThreshold", 1024);
+    // how long the shutdown waits for the requests already in the server
+    private static final long SHUTDOWN_WAIT_MILLIS = Long.getLong("server.shutdownWaitMillis", 5000);
 
     /**
      * used to send messages back to the user
@@ -26,12 +39,152 @@ public class Server {
      */
     public static void sendResponse(HttpExchange exchange, int errorType, String message) throws IOException{
         byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        String encoding = bytes.length >= COMPRESSION_THRESHOLD ? negotiateEncoding(exchange) : null;
+        if (encoding != null) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+            try (OutputStream output = compress(compressed, encoding)) {
+                output.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+        }
         exchange.sendResponseHeaders(errorType, bytes.length);
         try (OutputStream output = exchange.getResponseBody()) {
             output.write(bytes);
         }
     }
 
+    /**
+     * picks the compression for the response from the Accept-Encoding header of the request, gzip before deflate.
+     * Sets Content-Encoding when one is picked, and gives the ETag a suffix for the coding, so a cache never
+     * takes the compressed and the uncompressed response for the same bytes.
+     * @param exchange
+     * @return "gzip", "deflate" or null to send the response uncompressed
+     */
+    private static String negotiateEncoding(HttpExchange exchange) {
+        String encoding = ContentCodings.choose(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        if (encoding != null) {
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+            String etag = exchange.getResponseHeaders().getFirst("ETag");
+            if (etag != null) {
+                exchange.getResponseHeaders().set("ETag", ContentCodings.encodedTag(etag, encoding));
+            }
+        }
+        return encoding;
+    }
+
+    private static OutputStream compress(OutputStream output, String encoding) throws IOException {
+        return encoding.equals("gzip") ? new GZIPOutputStream(output, 8192) : new DeflaterOutputStream(output);
+    }
+
+
+    /**
+     * starts a chunked 200 response for JSON that is written while it is read from the database.
+     * The response is compressed on the fly if the client accepts it.
+     * @param exchange
+     * @return writer for the response body, closing it ends the response
+     * @throws IOException
+     */
+    public static JSONStreamWriter startJSONStream(HttpExchange exchange) throws IOException{
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        String encoding = negotiateEncoding(exchange);
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+        OutputStream output = exchange.getResponseBody();
+        return new JSONStreamWriter(encoding == null ? output : compress(output, encoding));
+    }
+
+    /**
+     * sends an error to the user, or cuts the response short if its headers have already been sent
+     * @param exchange
+     * @param errorType HTTP code
+     * @param message
+     * @throws IOException
+     */
+    public static void sendError(HttpExchange exchange, int errorType, String message) throws IOException{
+        if (exchange.getResponseCode() == -1) {
+            sendResponse(exchange, errorType, message);
+        } else {
+            exchange.close();
+        }
+    }
+
+    /**
+     * adds the ETag of the current data to the response and, if the client already has that version
+     * in a content coding it still accepts, answers 304 without a body
+     * @param exchange
+     * @param etag
+     * @return true if 304 was sent and the request is done
+     * @throws IOException
+     */
+    public static boolean notModified(HttpExchange exchange, String etag) throws IOException{
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String encoding = ContentCodings.choose(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (ContentCodings.tagMatches(tag, etag, encoding)) {
+                // the client keeps the copy it has, in the coding it has it in
+                if (!tag.equals("*")) {
+                    exchange.getResponseHeaders().set("ETag", tag.startsWith("W/") ? tag.substring(2) : tag);
+                }
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                exchange.close();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * parses the query string of the request into a map of parameter names and values
+     * @param exchange
+     * @return
+     */
+    public static Map<String, String> queryParams(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            String name = separator < 0 ? pair : pair.substring(0, separator);
+            String value = separator < 0 ? "" : pair.substring(separator + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    /**
+     * reads the whole request body as bytes and closes it
+     * @param exchange
+     * @param maxBytes largest body that is read
+     * @return the body, or null if it is larger than maxBytes
+     * @throws IOException
+     */
+    public static byte[] readBody(HttpExchange exchange, int maxBytes) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (length != null) {
+                try {
+                    if (Long.parseLong(length.trim()) > maxBytes) {
+                        return null;
+                    }
+                } catch (NumberFormatException ignored) {
+                    // the HTTP server rejects these already, the read below still enforces the limit
+                }
+            }
+            byte[] bytes = body.readNBytes(maxBytes + 1);
+            return bytes.length > maxBytes ? null : bytes;
+        }
+    }
+
 
     private static SSLContext myServerSSLContext(String[] args) throws Exception{
         KeyStore ks = KeyStore.getInstance("JKS");
@@ -50,6 +203,77 @@ public class Server {
         return ssl;
     }
 
+    private static void registerStats(StatsHandler stats, WeatherEnricher weatherEnricher) {
+        stats.register("weather.queueDepth", weatherEnricher::getQueueDepth);
+        stats.register("weather.oldestWaitMillis", weatherEnricher::getOldestWaitMillis);
+        stats.register("weather.lastLagMillis", weatherEnricher::getLastLagMillis);
+        stats.register("weather.enriched", weatherEnricher::getEnriched);
+        stats.register("weather.failed", weatherEnricher::getFailed);
+        stats.register("weather.rejected", weatherEnricher::getRejected);
+    }
+
+    private static void registerStats(StatsHandler stats, AdmissionFilter admission) {
+        stats.register("requests.limit", admission::getLimit);
+        stats.register("requests.inFlight", admission::getInFlight);
+        stats.register("requests.admitted", admission::getAdmitted);
+        stats.register("requests.rejected", admission::getRejected);
+    }
+
+    /**
+     * creates an executor that runs every task on its own virtual thread. Virtual threads came with Java 21,
+     * so the factory is looked up when the server starts and the server still builds and runs on Java 17.
+     * @return the executor, or null if the JVM has no virtual threads
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * creates the executor that runs the handlers, chosen by the server.executor system property:
+     * "virtual" runs every request on its own virtual thread, "cached" (default) on a cached pool of platform threads.
+     * The bulkheads pick the same kind of threads. Either way the amount of requests in the server at once
+     * is limited by the {@link AdmissionFilter}.
+     * @return
+     */
+    private static ExecutorService createExecutor() {
+        String executor = System.getProperty("server.executor", "cached");
+        switch (executor) {
+            case "virtual":
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual != null) {
+                    return virtual;
+                }
+                System.out.println("Virtual threads need Java 21, running requests on cached threads");
+                return Executors.newCachedThreadPool();
+            case "cached":
+                return Executors.newCachedThreadPool();
+            default:
+                throw new IllegalArgumentException("Unknown server.executor " + executor);
+        }
+    }
+
+    /**
+     * adds a bulkhead to a context, which admits its requests before queueing them
+     * @param context
+     * @param name name of the bulkhead in system properties and stats
+     * @param threads amount of threads
+     * @param admission
+     * @param stats
+     * @return
+     */
+    private static BulkheadFilter addBulkhead(HttpContext context, String name, int threads,
+                                              AdmissionFilter admission, StatsHandler stats) {
+        // a context can queue twice its threads, enough to ride out a burst but not to take the whole admission limit
+        BulkheadFilter bulkhead = BulkheadFilter.fromSystemProperties(name, threads, 2 * threads, admission);
+        bulkhead.registerStats(stats);
+        context.getFilters().add(bulkhead);
+        return bulkhead;
+    }
+
     public static void main(String[] args) throws Exception {
         try{
         HttpsServer server = HttpsServer.create(new InetSocketAddress(8001),0);
@@ -62,19 +286,94 @@ public class Server {
                 params.setSSLParameters(sslparams);
             }
         });
-        UserAuthenticator authenticator = new UserAuthenticator("/info", database);
+        UserAuthenticator userAuthenticator = new UserAuthenticator("/info", database);
+        SessionTokens tokens = SessionTokens.fromSystemProperties();
+        TokenAuthenticator authenticator = new TokenAuthenticator(userAuthenticator, tokens);
 
-        HttpContext infoContext = server.createContext("/info", new InfoHandler(database));
+        StatsHandler stats = new StatsHandler();
+        // the admission limit counts the requests running or waiting in the bulkheads, by default one waiting
+        // request per bulkhead thread. Each bulkhead can queue twice its threads, so one busy context runs into
+        // its own queue limit first, and the admission limit sheds load when several of them are busy
+        int processors = Runtime.getRuntime().availableProcessors();
+        int infoThreads = BulkheadFilter.threadsFromSystemProperties("info", 4 * processors);
+        int topThreads = BulkheadFilter.threadsFromSystemProperties("topfive", processors);
+        int registrationThreads = BulkheadFilter.threadsFromSystemProperties("registration", Math.max(1, processors / 2));
+        int loginThreads = BulkheadFilter.threadsFromSystemProperties("login", processors);
+        int pathsThreads = BulkheadFilter.threadsFromSystemProperties("paths", 2 * processors);
+        AdmissionFilter admission = AdmissionFilter.fromSystemProperties(
+                2 * (infoThreads + topThreads + registrationThreads + loginThreads + pathsThreads));
+        registerStats(stats, admission);
+        WeatherClient weatherClient = WeatherClient.fromSystemProperties();
+        WeatherEnricher weatherEnricher = null;
+        if (Boolean.getBoolean("weather.async")) {
+            weatherEnricher = WeatherEnricher.fromSystemProperties(database, weatherClient);
+            registerStats(stats, weatherEnricher);
+        }
+
+        HttpContext infoContext = server.createContext("/info", new InfoHandler(database, weatherClient, weatherEnricher));
         HttpContext topContext = server.createContext("/topfive", new TopFiveHandler(database));
-        HttpContext registrationContext = server.createContext("/registration", new RegistrationHandler(authenticator, database));
+        HttpContext registrationContext = server.createContext("/registration", new RegistrationHandler(userAuthenticator, database));
+        HttpContext loginContext = server.createContext("/login", new LoginHandler(userAuthenticator, tokens));
         HttpContext pathsContext = server.createContext("/paths", new PathsHandler(database));
+        HttpContext statsContext = server.createContext("/stats", stats);
+        // event streams mostly wait for events, so each one gets a cheap virtual thread of its own,
+        // or a cached platform thread before Java 21
+        ExecutorService virtualStreams = newVirtualThreadExecutor();
+        ExecutorService eventStreams = virtualStreams != null ? virtualStreams : Executors.newCachedThreadPool();
+        HttpContext eventsContext = server.createContext("/events", new EventsHandler(database.getEvents(), eventStreams));
+        database.getEvents().registerStats(stats);
+        database.registerStats(stats);
 
         infoContext.setAuthenticator(authenticator);
         pathsContext.setAuthenticator(authenticator);
         topContext.setAuthenticator(authenticator);
+        statsContext.setAuthenticator(authenticator);
+        eventsContext.setAuthenticator(authenticator);
+
+        // each context gets its own bulkhead. stats are left out so they can still be read while requests are
+        // being rejected, and events because their connections stay open and would hold a permit for as long as they do
+        ArrayList<BulkheadFilter> bulkheads = new ArrayList<>();
+        bulkheads.add(addBulkhead(infoContext, "info", infoThreads, admission, stats));
+        bulkheads.add(addBulkhead(topContext, "topfive", topThreads, admission, stats));
+        bulkheads.add(addBulkhead(registrationContext, "registration", registrationThreads, admission, stats));
+        bulkheads.add(addBulkhead(loginContext, "login", loginThreads, admission, stats));
+        bulkheads.add(addBulkhead(pathsContext, "paths", pathsThreads, admission, stats));
 
-        server.setExecutor(Executors.newCachedThreadPool());
+        ExecutorService executor = createExecutor();
+        server.setExecutor(executor);
         server.start();
+
+        WeatherEnricher enricher = weatherEnricher;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // no new requests are taken, and the ones already in the server finish before the database
+            // writes the last visits, so a visit counted by a late handler is not lost
+            server.stop(1);
+            executor.shutdown();
+            eventStreams.shutdownNow();
+            for (BulkheadFilter bulkhead : bulkheads) {
+                bulkhead.close();
+            }
+            try {
+                long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT_MILLIS;
+                for (BulkheadFilter bulkhead : bulkheads) {
+                    if (!bulkhead.awaitClosed(Math.max(0, deadline - System.currentTimeMillis()))) {
+                        System.out.println("Requests still running at shutdown, their visits may be lost");
+                    }
+                }
+                executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (enricher != null) {
+                enricher.close();
+            }
+            try {
+                database.close();
+            } catch (Exception e) {
+                System.out.println("Error closing DB");
+                e.printStackTrace();
+            }
+        }));
         } catch (FileNotFoundException e) {
                 System.out.println("Certificate not found");
                 e.printStackTrace();
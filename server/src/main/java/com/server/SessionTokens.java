@@ -0,0 +1,114 @@
+package com.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Issues and checks signed, expiring session tokens. A token is
+ * {@code base64(username).base64(nickname).expiry.base64(HMAC-SHA256 of the rest)},
+ * so checking one needs no database access.
+ */
+public class SessionTokens {
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    private final long ttlMillis;
+    private final ThreadLocal<Mac> macs;
+
+    /**
+     * @param secret signing key, tokens stay valid across restarts and servers only if this stays the same
+     * @param ttlMillis how long an issued token is valid
+     */
+    SessionTokens(byte[] secret, long ttlMillis) {
+        this.key = new SecretKeySpec(secret, "HmacSHA256");
+        this.ttlMillis = ttlMillis;
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 not available", e);
+            }
+        });
+    }
+
+    /**
+     * creates tokens signed with the base64 key in the auth.tokenSecret system property,
+     * or with a random key if it is not set. Tokens are valid for auth.tokenTtlSeconds (default one hour).
+     * @return
+     */
+    public static SessionTokens fromSystemProperties() {
+        byte[] secret;
+        String configured = System.getProperty("auth.tokenSecret");
+        if (configured != null) {
+            secret = Base64.getDecoder().decode(configured);
+        } else {
+            secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+        }
+        return new SessionTokens(secret, Long.getLong("auth.tokenTtlSeconds", 3600) * 1000);
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * creates a token for the user
+     * @param user
+     * @param expires expiry time in unix milliseconds
+     * @return
+     */
+    public String issue(User user, long expires) {
+        String payload = encode(user.getUsername()) + "." + encode(user.getNickname()) + "." + expires;
+        return payload + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    /**
+     * checks the signature and expiry of a token
+     * @param token
+     * @return the user the token was issued for, or null if the token is not valid
+     */
+    public User verify(String token) {
+        int signatureStart = token.lastIndexOf('.');
+        if (signatureStart < 0) {
+            return null;
+        }
+        String payload = token.substring(0, signatureStart);
+        String[] parts = payload.split("\\.", -1);
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            byte[] signature = DECODER.decode(token.substring(signatureStart + 1));
+            if (!MessageDigest.isEqual(signature, sign(payload))) {
+                return null;
+            }
+            if (Long.parseLong(parts[2]) < System.currentTimeMillis()) {
+                return null;
+            }
+            return new User(decode(parts[0]), null, null, decode(parts[1]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private byte[] sign(String payload) {
+        return macs.get().doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String encode(String value) {
+        return ENCODER.encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String value) {
+        return new String(DECODER.decode(value), StandardCharsets.UTF_8);
+    }
+}
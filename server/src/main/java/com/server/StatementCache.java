@@ -0,0 +1,63 @@
+package com.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+
+/**
+ * Prepared statements of one connection, kept open and reused by their SQL so SQLite does not have to
+ * parse and plan the same query again on every call.
+ * A statement whose results are still being read is not handed out twice, a second one is prepared instead.
+ */
+public class StatementCache {
+    private final Connection connection;
+    private final HashMap<String, PreparedStatement> idle = new HashMap<>();
+
+    StatementCache(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * takes the cached statement for the SQL, or prepares one. It has to be given back with {@link #release}.
+     * @param sql
+     * @return
+     * @throws SQLException
+     */
+    public synchronized PreparedStatement borrow(String sql) throws SQLException {
+        PreparedStatement statement = idle.remove(sql);
+        return statement != null ? statement : connection.prepareStatement(sql);
+    }
+
+    /**
+     * gives a statement back for reuse, its results must have been closed
+     * @param sql
+     * @param statement
+     */
+    public synchronized void release(String sql, PreparedStatement statement) {
+        try {
+            statement.clearParameters();
+            if (idle.putIfAbsent(sql, statement) != null) {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            idle.remove(sql, statement);
+            System.out.println("Error releasing prepared statement");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * closes the cached statements, not the connection
+     */
+    public synchronized void close() {
+        for (PreparedStatement statement : idle.values()) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        idle.clear();
+    }
+}
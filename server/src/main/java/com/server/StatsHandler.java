@@ -0,0 +1,51 @@
+package com.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * Serves the current values of the server's internal gauges and counters (queue depths, lags and so on) as JSON.
+ */
+public class StatsHandler implements HttpHandler {
+    private final ConcurrentSkipListMap<String, Supplier<Object>> stats = new ConcurrentSkipListMap<>();
+
+    /**
+     * adds a value to the stats
+     * @param name name of the value in the JSON, e.g. "weather.queueDepth"
+     * @param value read every time the stats are requested
+     */
+    public void register(String name, Supplier<Object> value) {
+        stats.put(name, value);
+    }
+
+    /**
+     * Handle the given request and generate an appropriate response.
+     * See {@link HttpExchange} for a description of the steps
+     * involved in handling an exchange.
+     *
+     * @param exchange the exchange containing the request from the
+     *                 client and used to send the response
+     * @throws NullPointerException if exchange is {@code null}
+     * @throws IOException          if an I/O error occurs
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+            JSONObject json = new JSONObject();
+            for (Map.Entry<String, Supplier<Object>> stat : stats.entrySet()) {
+                json.put(stat.getKey(), stat.getValue().get());
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_OK, json.toString());
+        } else {
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_NOT_IMPLEMENTED, "Not Supported");
+        }
+    }
+}
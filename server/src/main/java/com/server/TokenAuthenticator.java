@@ -0,0 +1,41 @@
+package com.server;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Accepts either a Bearer session token from /login or Basic credentials.
+ * Tokens are checked from their signature only, Basic credentials are passed on to the {@link UserAuthenticator}.
+ */
+public class TokenAuthenticator extends Authenticator {
+    private final UserAuthenticator basicAuthenticator;
+    private final SessionTokens tokens;
+
+    TokenAuthenticator(UserAuthenticator basicAuthenticator, SessionTokens tokens) {
+        this.basicAuthenticator = basicAuthenticator;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Called to authenticate each incoming request.
+     *
+     * @param exchange the {@code HttpExchange} upon which authenticate is called
+     * @return the result
+     */
+    @Override
+    public Result authenticate(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return basicAuthenticator.authenticate(exchange);
+        }
+        User user = tokens.verify(authorization.substring(7).trim());
+        if (user == null) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer realm=\"" + basicAuthenticator.getRealm()
+                    + "\", error=\"invalid_token\"");
+            return new Retry(HttpURLConnection.HTTP_UNAUTHORIZED);
+        }
+        return new Success(new UserPrincipal(user, basicAuthenticator.getRealm()));
+    }
+}
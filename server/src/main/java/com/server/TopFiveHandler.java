@@ -6,12 +6,11 @@ import org.jooq.exception.DataAccessException;
 import org.json.JSONArray;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 
 public class TopFiveHandler implements HttpHandler {
+    private static final int DEFAULT_K = 5;
+
     private final MsgServerDatabase database;
 
     TopFiveHandler(MsgServerDatabase database){
@@ -36,28 +35,44 @@ public class TopFiveHandler implements HttpHandler {
         }
     }
 
+    /**
+     * handles GET requests by sending the most visited locations, ?k=N sets how many (5 by default)
+     * @param exchange
+     * @throws IOException
+     */
     private void handleGET(HttpExchange exchange) throws IOException {
-        JSONArray topFive = new JSONArray();
+        int k = DEFAULT_K;
+        String kParam = Server.queryParams(exchange).get("k");
+        try {
+            if (kParam != null){
+                k = Integer.parseInt(kParam);
+            }
+        }catch (NumberFormatException e){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "k must be a number");
+            return;
+        }
+        if (k < 1 || k > database.getTopVisitedCapacity()){
+            Server.sendResponse(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "k must be between 1 and " + database.getTopVisitedCapacity());
+            return;
+        }
+
+        if (Server.notModified(exchange, database.getVersions().messagesTag())){
+            return;
+        }
+        JSONArray topVisited;
         try {
-            topFive = database.getTopFive();
+            topVisited = database.getTopVisited(k);
         }
         catch (DataAccessException | IllegalArgumentException e){
             Server.sendResponse(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "Error while getting locations");
             e.printStackTrace();
+            return;
         }
 
-
-        if (topFive.isEmpty()){
+        if (topVisited.isEmpty()){
             exchange.sendResponseHeaders(HttpURLConnection.HTTP_NO_CONTENT, -1);
+            return;
         }
-
-        byte[] bytes = topFive.toString().getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, bytes.length);
-        try (OutputStream output = exchange.getResponseBody()) {
-            output.write(bytes);
-        } catch (Exception e) {
-            e.printStackTrace();
-            Server.sendResponse(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "error writing locations");
-        }
+        Server.sendResponse(exchange, HttpURLConnection.HTTP_OK, topVisited.toString());
     }
 }
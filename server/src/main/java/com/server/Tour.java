@@ -3,15 +3,34 @@ package com.server;
 import java.util.ArrayList;
 
 public class Tour {
+    private Integer id;
     private String tourName;
     private String tourDescription;
     private ArrayList<Integer> locationIDs;
+    private ArrayList<Message> locations;
 
 
     Tour(String tourName, String tourDescription, ArrayList<Integer> locationIDs){
         setTourName(tourName);
         setTourDescription(tourDescription);
         setLocationIDs(locationIDs);
+        setLocations(new ArrayList<>());
+    }
+
+    Tour(Integer id, String tourName, String tourDescription){
+        setId(id);
+        setTourName(tourName);
+        setTourDescription(tourDescription);
+        setLocationIDs(new ArrayList<>());
+        setLocations(new ArrayList<>());
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
     }
 
     public void setLocationIDs(ArrayList<Integer> locationIDs) {
@@ -21,6 +40,18 @@ public class Tour {
         return locationIDs;
     }
 
+    /**
+     * messages of the tour's locations in tour order, filled in when the tour is read from the database
+     * @return
+     */
+    public ArrayList<Message> getLocations() {
+        return locations;
+    }
+
+    public void setLocations(ArrayList<Message> locations) {
+        this.locations = locations;
+    }
+
     public String getTourName() {
         return tourName;
     }
@@ -34,17 +65,4 @@ public class Tour {
         this.tourDescription = tourDescription;
     }
 
-    /**
-     * creates a string from the locationID arraylist, separated by commas
-     * @return
-     */
-    public String locationIDsToString() {
-        StringBuilder str = new StringBuilder();
-        for (Integer id : locationIDs) {
-            str.append(id);
-            str.append(',');
-        }
-        return str.toString();
-    }
-
 }
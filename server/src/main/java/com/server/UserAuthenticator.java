@@ -1,13 +1,40 @@
 package com.server;
 
+import com.sun.net.httpserver.HttpExchange;
 import org.jooq.exception.DataAccessException;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.HttpURLConnection;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.sql.SQLException;
+import java.util.Base64;
 
 public class UserAuthenticator extends com.sun.net.httpserver.BasicAuthenticator{
+    private static final int CACHE_SIZE = Integer.getInteger("auth.cacheSize", 10000);
+    private static final long CACHE_TTL_MILLIS = Long.getLong("auth.cacheTtlSeconds", 300) * 1000;
 
     private final MsgServerDatabase userDB;
+    private final Charset charset;
+    // successful verifications by username, so the password is hashed only once per TTL
+    private final LruCache<String, VerifiedCredentials> verifiedCredentials = new LruCache<>(CACHE_SIZE, CACHE_TTL_MILLIS);
+    // cached passwords are only kept as a keyed digest, the key never leaves this process
+    private final SecretKeySpec digestKey;
+    private final ThreadLocal<Mac> digests;
+
+    private static final class VerifiedCredentials {
+        private final byte[] passwordDigest;
+        private final User user;
+
+        VerifiedCredentials(byte[] passwordDigest, User user) {
+            this.passwordDigest = passwordDigest;
+            this.user = user;
+        }
+    }
 
     /**
      * Creates a {@code BasicAuthenticator} for the given HTTP realm.
@@ -24,8 +51,7 @@ public class UserAuthenticator extends com.sun.net.httpserver.BasicAuthenticator
      * quoted string.
      */
     public UserAuthenticator(String realm, MsgServerDatabase database) {
-        super(realm);
-        userDB = database;
+        this(realm, Charset.defaultCharset(), database);
     }
 
     /**
@@ -47,8 +73,63 @@ public class UserAuthenticator extends com.sun.net.httpserver.BasicAuthenticator
      * string.
      */
     public UserAuthenticator(String realm, Charset charset, MsgServerDatabase database) {
-        super(realm);
+        super(realm, charset);
         userDB = database;
+        this.charset = charset;
+
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        digestKey = new SecretKeySpec(key, "HmacSHA256");
+        digests = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(digestKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 not available", e);
+            }
+        });
+    }
+
+    /**
+     * Checks the Basic credentials of the request like {@link com.sun.net.httpserver.BasicAuthenticator} does,
+     * but the principal of a successful request is a {@link UserPrincipal} that carries the user.
+     *
+     * @param exchange the {@code HttpExchange} upon which authenticate is called
+     * @return the result
+     */
+    @Override
+    public Result authenticate(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return unauthorized(exchange);
+        }
+        String credentials;
+        try {
+            credentials = new String(Base64.getDecoder().decode(authorization.substring(6).trim()), charset);
+        } catch (IllegalArgumentException e) {
+            return unauthorized(exchange);
+        }
+        int separator = credentials.indexOf(':');
+        if (separator < 0) {
+            return unauthorized(exchange);
+        }
+        User user = verify(credentials.substring(0, separator), credentials.substring(separator + 1));
+        if (user == null) {
+            return unauthorized(exchange);
+        }
+        return new Success(new UserPrincipal(user, realm));
+    }
+
+    /**
+     * asks the client for Basic credentials
+     * @param exchange
+     * @return
+     */
+    Result unauthorized(HttpExchange exchange) {
+        String charsetParam = charset.equals(StandardCharsets.UTF_8) ? ", charset=\"UTF-8\"" : "";
+        exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"" + realm + "\"" + charsetParam);
+        return new Retry(HttpURLConnection.HTTP_UNAUTHORIZED);
     }
 
     /**
@@ -63,14 +144,39 @@ public class UserAuthenticator extends com.sun.net.httpserver.BasicAuthenticator
      */
     @Override
     public boolean checkCredentials(String username, String password) {
+        return verify(username, password) != null;
+    }
+
+    /**
+     * checks the credentials against the cache of recent successful checks first, and the database after that
+     * @param username
+     * @param password
+     * @return the user if the credentials are valid, null otherwise
+     */
+    public User verify(String username, String password) {
+        byte[] passwordDigest = digests.get().doFinal(password.getBytes(StandardCharsets.UTF_8));
+        VerifiedCredentials cached = verifiedCredentials.get(username);
+        if (cached != null && MessageDigest.isEqual(cached.passwordDigest, passwordDigest)) {
+            return cached.user;
+        }
         try {
-            if (userDB.containsUser(username)){
-                return userDB.checkPassword(username, password);
+            User user = userDB.authenticate(username, password);
+            if (user != null) {
+                verifiedCredentials.put(username, new VerifiedCredentials(passwordDigest, user));
             }
+            return user;
         }catch (DataAccessException e){
             System.out.println("SQL error while checking credentials");
         }
-        return false;
+        return null;
+    }
+
+    /**
+     * forgets the cached verification of a user, has to be called when the password of the user changes
+     * @param username
+     */
+    public void invalidate(String username) {
+        verifiedCredentials.invalidate(username);
     }
 
     /**
@@ -86,6 +192,7 @@ public class UserAuthenticator extends com.sun.net.httpserver.BasicAuthenticator
             if (username.isEmpty() || password.isEmpty() || email.isEmpty()) return false;
             if (userDB.containsUser(username)) return false;
             userDB.addUser(new User(username, password, email, nickname));
+            invalidate(username);
             return true;
         }catch (DataAccessException | SQLException e){
             System.out.println("SQLError while adding user");
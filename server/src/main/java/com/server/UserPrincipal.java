@@ -0,0 +1,19 @@
+package com.server;
+
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * Principal of an authenticated request, carries the user so handlers do not have to look it up again.
+ */
+public class UserPrincipal extends HttpPrincipal {
+    private final User user;
+
+    UserPrincipal(User user, String realm) {
+        super(user.getUsername(), realm);
+        this.user = user;
+    }
+
+    public User getUser() {
+        return user;
+    }
+}
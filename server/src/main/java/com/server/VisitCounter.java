@@ -0,0 +1,198 @@
+package com.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Counts location visits in memory and writes them to the database in batches,
+ * either every flush interval or as soon as enough visits have piled up.
+ * Counting a visit never touches the database.
+ * Reads that add the pending visits to what they read from the database run through {@link #read(Supplier)},
+ * so a flush never hands its batch over to the database in the middle of them: a read sees the batch either
+ * as pending or in the database, never in both or in neither.
+ */
+public class VisitCounter {
+    // visits since the last flush, replaced with an empty map when a flush takes them
+    private volatile ConcurrentHashMap<Integer, LongAdder> pending = new ConcurrentHashMap<>();
+    // visits taken by a flush that has not been committed yet
+    private volatile Map<Integer, Long> flushing = Map.of();
+    // visits hold the read lock while they count, a flush holds the write lock while it takes the pending visits
+    private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+    // reads hold the read lock while they start, a flush holds the write lock while it takes the pending visits
+    // and while it commits them
+    private final ReentrantReadWriteLock commitLock = new ReentrantReadWriteLock();
+    private final LongAdder pendingTotal = new LongAdder();
+    private final AtomicBoolean flushQueued = new AtomicBoolean(false);
+
+    private final Consumer<Map<Integer, Long>> store;
+    private final long flushThreshold;
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * @param store writes a batch of visit counts (location id to added visits) to the database in one go,
+     *              committing it with {@link #commit(Runnable)}
+     * @param flushIntervalMillis how often pending visits are written
+     * @param flushThreshold amount of pending visits that triggers a write before the interval is up
+     */
+    VisitCounter(Consumer<Map<Integer, Long>> store, long flushIntervalMillis, long flushThreshold) {
+        this.store = store;
+        this.flushThreshold = flushThreshold;
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "visit-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * counts one visit to a location
+     * @param id
+     */
+    public void visit(Integer id) {
+        swapLock.readLock().lock();
+        try {
+            pending.computeIfAbsent(id, key -> new LongAdder()).increment();
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        pendingTotal.increment();
+        if (pendingTotal.sum() >= flushThreshold && flushQueued.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * runs a read of the database that adds the pending visits to what it reads. No flush commits while it runs,
+     * so {@link #pendingVisits(Integer)} and {@link #pendingVisits()} called in it give exactly the visits
+     * that the database it reads is missing. Reads that stream rows should only start the query in it
+     * and take the visits with {@link #pendingVisits()}.
+     * @param read
+     * @return what read returns
+     */
+    public <T> T read(Supplier<T> read) {
+        commitLock.readLock().lock();
+        try {
+            return read.get();
+        } finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * gets the visits of a location that are not in the database yet, exact only inside {@link #read(Supplier)}
+     * @param id
+     * @return
+     */
+    public long pendingVisits(Integer id) {
+        LongAdder visits = pending.get(id);
+        return (visits == null ? 0 : visits.sum()) + flushing.getOrDefault(id, 0L);
+    }
+
+    /**
+     * copies the visits that are not in the database yet, exact only inside {@link #read(Supplier)}.
+     * Only locations visited since the last flush are in it, so it stays small.
+     * @return visits by location id
+     */
+    public Map<Integer, Long> pendingVisits() {
+        HashMap<Integer, Long> visits = new HashMap<>(flushing);
+        for (Map.Entry<Integer, LongAdder> entry : pending.entrySet()) {
+            visits.merge(entry.getKey(), entry.getValue().sum(), Long::sum);
+        }
+        return visits;
+    }
+
+    /**
+     * runs the write that commits the batch given to the store. Reads do not start while it runs, and once it
+     * returns the batch is no longer pending.
+     * @param write
+     */
+    public void commit(Runnable write) {
+        commitLock.writeLock().lock();
+        try {
+            write.run();
+            flushing = Map.of();
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * writes all pending visits to the database. If the write fails the visits are kept for the next flush.
+     */
+    public synchronized void flush() {
+        flushQueued.set(false);
+        HashMap<Integer, Long> batch = new HashMap<>();
+        commitLock.writeLock().lock();
+        swapLock.writeLock().lock();
+        try {
+            for (Map.Entry<Integer, LongAdder> entry : pending.entrySet()) {
+                long visits = entry.getValue().sum();
+                if (visits > 0) {
+                    batch.put(entry.getKey(), visits);
+                }
+            }
+            pending = new ConcurrentHashMap<>();
+            flushing = batch;
+        } finally {
+            swapLock.writeLock().unlock();
+            commitLock.writeLock().unlock();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        long total = batch.values().stream().mapToLong(Long::longValue).sum();
+        pendingTotal.add(-total);
+
+        try {
+            store.accept(batch);
+        } catch (RuntimeException e) {
+            commitLock.writeLock().lock();
+            swapLock.writeLock().lock();
+            try {
+                if (!flushing.isEmpty()) {
+                    for (Map.Entry<Integer, Long> entry : batch.entrySet()) {
+                        pending.computeIfAbsent(entry.getKey(), key -> new LongAdder()).add(entry.getValue());
+                    }
+                    pendingTotal.add(total);
+                    flushing = Map.of();
+                }
+            } finally {
+                swapLock.writeLock().unlock();
+                commitLock.writeLock().unlock();
+            }
+            throw e;
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            System.out.println("Error writing visits to DB, retrying on next flush");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * stops the timer and writes what is still pending
+     */
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
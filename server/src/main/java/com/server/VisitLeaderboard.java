@@ -0,0 +1,228 @@
+package com.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Keeps the most visited locations in memory, so the top list never has to be sorted out of the database.
+ * Only the locations on the top list are tracked here, with their counts as stored in the database, and visits
+ * do not come through here at all: the pending visits of the listed locations are added when the list is read.
+ * The stored counts change when a flush commits. The locations the flush wrote that are not on the list are
+ * loaded after it, once for the whole batch, and take the places of the ones they passed, so a location gets
+ * on the list at most one flush late. Reading the list needs no locking.
+ */
+public class VisitLeaderboard {
+
+    /**
+     * one location on the top list
+     */
+    public static final class Entry {
+        private final int id;
+        private final String name;
+        private final long visits;
+
+        Entry(int id, String name, long visits) {
+            this.id = id;
+            this.name = name;
+            this.visits = visits;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getVisits() {
+            return visits;
+        }
+    }
+
+    /**
+     * reads the stored counts of locations that are not on the top list
+     */
+    interface Loader {
+        /**
+         * @param ids
+         * @param minVisits locations with fewer stored visits can be left out, they would not get on the list
+         * @return the locations that exist, with their names and stored visits
+         */
+        Collection<Entry> load(Collection<Integer> ids, long minVisits);
+    }
+
+    private static final class Location {
+        private final int id;
+        private volatile String name;
+        // the visits in the database, only changed while holding the leaderboard
+        private volatile long stored;
+
+        Location(int id, String name, long stored) {
+            this.id = id;
+            this.name = name;
+            this.stored = stored;
+        }
+    }
+
+    private static final Comparator<Entry> MOST_VISITED = Comparator.comparingLong(Entry::getVisits).reversed()
+            .thenComparingInt(Entry::getId);
+    private static final Comparator<Location> MOST_STORED = Comparator.comparingLong((Location location) -> location.stored)
+            .reversed().thenComparingInt(location -> location.id);
+
+    private final int capacity;
+    private final IntToLongFunction pendingVisits;
+    private final Loader loader;
+    // the locations on the top list by id, guarded by the leaderboard
+    private final HashMap<Integer, Location> locations = new HashMap<>();
+    // locations written by a flush that were not on the list, loaded by the next promote. Guarded by the leaderboard
+    private final HashSet<Integer> entrants = new HashSet<>();
+    // the same locations as an immutable snapshot, most stored visits first
+    private volatile List<Location> top = List.of();
+
+    /**
+     * @param capacity how many locations the top list holds at most
+     * @param pendingVisits gets the visits of a location that are not in the database yet
+     * @param loader reads the locations that a flush wrote and that are not on the list
+     */
+    VisitLeaderboard(int capacity, IntToLongFunction pendingVisits, Loader loader) {
+        this.capacity = capacity;
+        this.pendingVisits = pendingVisits;
+        this.loader = loader;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * adds a location without updating the top list, used when seeding from the database with the most visited
+     * locations. {@link #rebuild()} has to be called after they are loaded.
+     * @param id
+     * @param name
+     * @param visits stored visits
+     */
+    public synchronized void load(int id, String name, long visits) {
+        locations.put(id, new Location(id, name, visits));
+    }
+
+    /**
+     * builds the top list from all loaded locations and forgets the ones that are not on it
+     */
+    public synchronized void rebuild() {
+        ArrayList<Location> ranked = new ArrayList<>(locations.values());
+        ranked.sort(MOST_STORED);
+        if (ranked.size() > capacity) {
+            List<Location> dropped = ranked.subList(capacity, ranked.size());
+            for (Location location : dropped) {
+                locations.remove(location.id);
+            }
+            dropped.clear();
+        }
+        top = List.copyOf(ranked);
+    }
+
+    /**
+     * adds a new location with its stored visit count
+     * @param id
+     * @param name
+     * @param visits
+     */
+    public synchronized void add(int id, String name, long visits) {
+        if (!locations.containsKey(id) && belongsOnTop(id, visits)) {
+            locations.put(id, new Location(id, name, visits));
+            rebuild();
+        }
+    }
+
+    /**
+     * adds a committed batch of visits to the stored counts of the listed locations and keeps the other ones for
+     * {@link #promote()}. Has to run in the commit, so a read never sees the batch both stored and pending.
+     * @param visitsByID added visits for each location id
+     */
+    public synchronized void stored(Map<Integer, Long> visitsByID) {
+        boolean changed = false;
+        for (Map.Entry<Integer, Long> entry : visitsByID.entrySet()) {
+            Location location = locations.get(entry.getKey());
+            if (location == null) {
+                entrants.add(entry.getKey());
+            } else {
+                location.stored += entry.getValue();
+                changed = true;
+            }
+        }
+        if (changed) {
+            rebuild();
+        }
+    }
+
+    /**
+     * loads the locations that the flushes since the last call wrote and that were not on the list, and puts
+     * the ones that passed the last entry on it. Runs after the commit, off the request path.
+     * If the loader fails the locations are kept for the next call.
+     */
+    public synchronized void promote() {
+        if (entrants.isEmpty()) {
+            return;
+        }
+        long minVisits = top.size() < capacity ? 0 : top.get(top.size() - 1).stored;
+        // a location added while the batch committed is loaded too, the count it was added with can miss the batch
+        for (Entry entry : loader.load(entrants, minVisits)) {
+            Location location = locations.get(entry.getId());
+            if (location == null) {
+                locations.put(entry.getId(), new Location(entry.getId(), entry.getName(), entry.getVisits()));
+            } else {
+                location.name = entry.getName();
+                location.stored = entry.getVisits();
+            }
+        }
+        entrants.clear();
+        rebuild();
+    }
+
+    /**
+     * changes the name shown for a location
+     * @param id
+     * @param name
+     */
+    public synchronized void rename(int id, String name) {
+        Location location = locations.get(id);
+        if (location != null) {
+            location.name = name;
+        }
+    }
+
+    /**
+     * gets the k most visited locations, most visited first, with their pending visits. Should run inside
+     * {@link VisitCounter#read(java.util.function.Supplier)} so that the stored and pending visits add up.
+     * @param k at most {@link #getCapacity()}
+     * @return
+     */
+    public List<Entry> top(int k) {
+        List<Location> current = top;
+        ArrayList<Entry> entries = new ArrayList<>(current.size());
+        for (Location location : current) {
+            entries.add(new Entry(location.id, location.name, location.stored + pendingVisits.applyAsLong(location.id)));
+        }
+        entries.sort(MOST_VISITED);
+        return entries.subList(0, Math.min(k, entries.size()));
+    }
+
+    /**
+     * checks if a location would be on the top list, in the same order the list is sorted in
+     * @param id
+     * @param visits stored visits
+     * @return
+     */
+    private boolean belongsOnTop(int id, long visits) {
+        List<Location> current = top;
+        return current.size() < capacity
+                || MOST_STORED.compare(new Location(id, null, visits), current.get(current.size() - 1)) < 0;
+    }
+}
@@ -0,0 +1,157 @@
+package com.server;
+
+import org.json.JSONObject;
+import org.json.XML;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client for the weather service, shared by all handlers.
+ * Temperatures are cached per geo cell (coordinates rounded to a grid), and concurrent requests
+ * for the same cell share one upstream call.
+ */
+public class WeatherClient {
+    private final HttpClient client;
+    private final URI uri;
+    private final Duration timeout;
+    private final BigDecimal cellDegrees;
+    private final LruCache<String, Double> temperatures;
+    private final ConcurrentHashMap<String, CompletableFuture<Double>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param uri address of the weather service
+     * @param timeout how long to wait for the service
+     * @param cellDegrees size of a cache cell in degrees of latitude and longitude
+     * @param cacheSize how many cells are cached at most
+     * @param ttlMillis how long a cached temperature is used
+     */
+    WeatherClient(URI uri, Duration timeout, double cellDegrees, int cacheSize, long ttlMillis) {
+        this.uri = uri;
+        this.timeout = timeout;
+        this.cellDegrees = BigDecimal.valueOf(cellDegrees);
+        temperatures = new LruCache<>(cacheSize, ttlMillis);
+        client = HttpClient.newBuilder()
+                .connectTimeout(timeout)
+                .build();
+    }
+
+    /**
+     * creates a client configured by the weather.url, weather.timeoutMillis, weather.cellDegrees,
+     * weather.cacheSize and weather.cacheTtlSeconds system properties
+     * @return
+     */
+    public static WeatherClient fromSystemProperties() {
+        return new WeatherClient(URI.create(System.getProperty("weather.url", "http://localhost:4001/weather")),
+                Duration.ofMillis(Long.getLong("weather.timeoutMillis", 2000)),
+                Double.parseDouble(System.getProperty("weather.cellDegrees", "0.01")),
+                Integer.getInteger("weather.cacheSize", 10000),
+                Long.getLong("weather.cacheTtlSeconds", 600) * 1000);
+    }
+
+    /**
+     * gets the temperature at the given coordinates, waiting for the weather service if it is not cached
+     * @param latitude
+     * @param longitude
+     * @return temperature value, or null if the weather service could not be reached
+     */
+    public Double getTemperature(double latitude, double longitude) {
+        try {
+            return getTemperatureAsync(latitude, longitude).get(timeout.toMillis() * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.out.println("Error getting weather: " + e);
+        }
+        return null;
+    }
+
+    /**
+     * gets the temperature at the given coordinates without blocking
+     * @param latitude
+     * @param longitude
+     * @return future temperature, completes exceptionally if the weather service could not be reached
+     */
+    public CompletableFuture<Double> getTemperatureAsync(double latitude, double longitude) {
+        long latitudeIndex = Math.round(latitude / cellDegrees.doubleValue());
+        long longitudeIndex = Math.round(longitude / cellDegrees.doubleValue());
+        String cell = latitudeIndex + ":" + longitudeIndex;
+
+        Double cached = temperatures.get(cell);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<Double> request = new CompletableFuture<>();
+        CompletableFuture<Double> running = inFlight.computeIfAbsent(cell, key -> {
+            // a fetch that finished after the check above filled the cache before it left inFlight
+            Double stored = temperatures.get(key);
+            if (stored != null) {
+                request.complete(stored);
+                return null;
+            }
+            return request;
+        });
+        if (running != request) {
+            return running == null ? request : running;
+        }
+        fetch(cellCenter(latitudeIndex), cellCenter(longitudeIndex)).whenComplete((temperature, error) -> {
+            if (error == null) {
+                temperatures.put(cell, temperature);
+            }
+            inFlight.remove(cell, request);
+            if (error == null) {
+                request.complete(temperature);
+            } else {
+                request.completeExceptionally(error);
+            }
+        });
+        return request;
+    }
+
+    /**
+     * gets the center coordinate of a cell, calculated in decimal so it has no more digits than the cell size
+     * (0.01 * 6012 is 60.12 and not 60.120000000000005)
+     * @param index
+     * @return
+     */
+    double cellCenter(long index) {
+        return cellDegrees.multiply(BigDecimal.valueOf(index)).doubleValue();
+    }
+
+    /**
+     * asks the weather service for the temperature with an XML request
+     * @param latitude
+     * @param longitude
+     * @return
+     */
+    private CompletableFuture<Double> fetch(double latitude, double longitude) {
+        JSONObject coordinates = new JSONObject();
+        coordinates.put("latitude", latitude);
+        coordinates.put("longitude", longitude);
+        String xmlRequest = XML.toString(coordinates, "coordinates");
+
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(uri)
+                .timeout(timeout)
+                .header("Content-Type", "application/xml")
+                .POST(HttpRequest.BodyPublishers.ofString(xmlRequest))
+                .build();
+
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        throw new IllegalStateException("Weather service answered " + response.statusCode());
+                    }
+                    JSONObject responseJSON = XML.toJSONObject(response.body());
+                    JSONObject weather = responseJSON.getJSONObject("weather");
+                    return weather.getDouble("temperature");
+                });
+    }
+}
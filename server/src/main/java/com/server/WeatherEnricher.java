@@ -0,0 +1,190 @@
+package com.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background stage that adds the temperature to messages that were stored without it.
+ * Messages wait in a bounded queue; workers take them in batches, look up the weather for the whole batch
+ * in parallel and write the temperatures back in one transaction.
+ */
+public class WeatherEnricher {
+
+    private static final class Job {
+        private final int id;
+        private final double latitude;
+        private final double longitude;
+        private final long queued = System.currentTimeMillis();
+
+        Job(int id, double latitude, double longitude) {
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    private final MsgServerDatabase database;
+    private final WeatherClient weatherClient;
+    private final BlockingQueue<Job> queue;
+    private final int batchSize;
+    private final ArrayList<Thread> workers = new ArrayList<>();
+    private volatile boolean running = true;
+
+    private final AtomicLong enriched = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile long lastLagMillis = 0;
+
+    /**
+     * @param database
+     * @param weatherClient
+     * @param queueSize how many messages can wait for weather at most
+     * @param workerCount amount of worker threads
+     * @param batchSize how many messages a worker takes at once
+     */
+    WeatherEnricher(MsgServerDatabase database, WeatherClient weatherClient, int queueSize, int workerCount, int batchSize) {
+        this.database = database;
+        this.weatherClient = weatherClient;
+        this.batchSize = batchSize;
+        queue = new ArrayBlockingQueue<>(queueSize);
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::work, "weather-enricher-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * creates an enricher configured by the weather.queueSize, weather.workers and weather.batchSize system properties
+     * @param database
+     * @param weatherClient
+     * @return
+     */
+    public static WeatherEnricher fromSystemProperties(MsgServerDatabase database, WeatherClient weatherClient) {
+        return new WeatherEnricher(database, weatherClient, Integer.getInteger("weather.queueSize", 10000),
+                Integer.getInteger("weather.workers", 2), Integer.getInteger("weather.batchSize", 50));
+    }
+
+    /**
+     * queues a stored message for weather
+     * @param id id of the message
+     * @param latitude
+     * @param longitude
+     * @return false if the queue is full
+     */
+    public boolean submit(int id, double latitude, double longitude) {
+        if (queue.offer(new Job(id, latitude, longitude))) {
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * gets how long the oldest queued message has waited
+     * @return
+     */
+    public long getOldestWaitMillis() {
+        Job oldest = queue.peek();
+        return oldest == null ? 0 : System.currentTimeMillis() - oldest.queued;
+    }
+
+    /**
+     * gets the time from queueing to writing the weather of the last written batch
+     * @return
+     */
+    public long getLastLagMillis() {
+        return lastLagMillis;
+    }
+
+    public long getEnriched() {
+        return enriched.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private void work() {
+        ArrayList<Job> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                Job first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                enrich(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                // enrich counts the messages it fails on itself
+                System.out.println("Error adding weather to messages");
+                e.printStackTrace();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * looks up the weather for a batch of messages in parallel and writes it to the database in one go.
+     * Every message of the batch is counted once, as enriched or as failed.
+     * @param batch
+     */
+    private void enrich(ArrayList<Job> batch) {
+        ArrayList<CompletableFuture<Double>> temperatures = new ArrayList<>(batch.size());
+        for (Job job : batch) {
+            temperatures.add(weatherClient.getTemperatureAsync(job.latitude, job.longitude));
+        }
+        HashMap<Integer, Double> weatherByID = new HashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                weatherByID.put(batch.get(i).id, temperatures.get(i).join());
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+            }
+        }
+        if (!weatherByID.isEmpty()) {
+            try {
+                database.updateWeather(weatherByID);
+                enriched.addAndGet(weatherByID.size());
+            } catch (RuntimeException e) {
+                // the failed lookups are already counted, only the temperatures that were not written are added
+                failed.addAndGet(weatherByID.size());
+                System.out.println("Error writing weather of " + weatherByID.size() + " messages to DB, they are left without weather");
+                e.printStackTrace();
+            }
+        }
+        lastLagMillis = System.currentTimeMillis() - batch.get(0).queued;
+    }
+
+    /**
+     * stops the workers, messages still in the queue are left without weather
+     */
+    public void close() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        if (!queue.isEmpty()) {
+            System.out.println(queue.size() + " messages left without weather");
+        }
+    }
+}
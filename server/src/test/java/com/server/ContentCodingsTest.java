@@ -0,0 +1,64 @@
+package com.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContentCodingsTest {
+
+    @Test
+    public void picksGzipBeforeDeflate() {
+        assertEquals("gzip", ContentCodings.choose("deflate, gzip"));
+        assertEquals("gzip", ContentCodings.choose("x-gzip"));
+        assertEquals("deflate", ContentCodings.choose("deflate, br"));
+        assertNull(ContentCodings.choose("br, identity"));
+        assertNull(ContentCodings.choose(null));
+    }
+
+    @Test
+    public void refusesCodingsWithZeroQuality() {
+        assertEquals("deflate", ContentCodings.choose("gzip;q=0, deflate;q=0.5"));
+        assertNull(ContentCodings.choose("gzip; q=0"));
+        assertNull(ContentCodings.choose("gzip;q=oops"));
+    }
+
+    @Test
+    public void wildcardAcceptsCodingsThatAreNotListed() {
+        assertEquals("gzip", ContentCodings.choose("*"));
+        assertEquals("gzip", ContentCodings.choose("br, *;q=0.1"));
+        assertNull(ContentCodings.choose("*;q=0"));
+    }
+
+    @Test
+    public void zeroQualityOverridesWildcard() {
+        assertEquals("deflate", ContentCodings.choose("gzip;q=0, *"));
+        assertEquals("deflate", ContentCodings.choose("*, gzip;q=0"));
+        assertNull(ContentCodings.choose("gzip;q=0, deflate;q=0, *"));
+    }
+
+    @Test
+    public void compressedResponsesGetTheirOwnTag() {
+        assertEquals("\"1-m2-gzip\"", ContentCodings.encodedTag("\"1-m2\"", "gzip"));
+        assertEquals("\"1-m2-t3-deflate\"", ContentCodings.encodedTag("\"1-m2-t3\"", "deflate"));
+    }
+
+    @Test
+    public void tagsMatchInTheCodingTheClientAccepts() {
+        assertTrue(ContentCodings.tagMatches("\"1-m2\"", "\"1-m2\"", null));
+        assertTrue(ContentCodings.tagMatches("\"1-m2\"", "\"1-m2\"", "gzip"));
+        assertTrue(ContentCodings.tagMatches("\"1-m2-gzip\"", "\"1-m2\"", "gzip"));
+        assertTrue(ContentCodings.tagMatches("W/\"1-m2-deflate\"", "\"1-m2\"", "deflate"));
+        assertTrue(ContentCodings.tagMatches("*", "\"1-m2\"", null));
+    }
+
+    @Test
+    public void tagsDoNotMatchOtherVersionsOrCodings() {
+        assertFalse(ContentCodings.tagMatches("\"1-m1-gzip\"", "\"1-m2\"", "gzip"));
+        assertFalse(ContentCodings.tagMatches("\"1-m2-gzip\"", "\"1-m2\"", null));
+        assertFalse(ContentCodings.tagMatches("\"1-m2-gzip\"", "\"1-m2\"", "deflate"));
+        assertFalse(ContentCodings.tagMatches("\"1-m2-br\"", "\"1-m2\"", "gzip"));
+    }
+}
@@ -0,0 +1,110 @@
+package com.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LruCacheTest {
+
+    @Test
+    public void keepsAtMostMaxEntries() {
+        LruCache<Integer, String> cache = new LruCache<>(3, 0);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, "v" + i);
+        }
+        assertEquals(3, cache.size());
+        assertEquals(7, cache.getEvictions());
+        assertEquals("v9", cache.get(9));
+    }
+
+    @Test
+    public void evictsEntriesThatWereNotRead() {
+        LruCache<Integer, String> cache = new LruCache<>(3, 0);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        cache.get(1);
+        cache.get(3);
+        cache.put(4, "d");
+        assertNull(cache.get(2));
+        assertEquals("a", cache.get(1));
+        assertEquals("c", cache.get(3));
+        assertEquals("d", cache.get(4));
+    }
+
+    @Test
+    public void replacesAndInvalidates() {
+        LruCache<Integer, String> cache = new LruCache<>(2, 0);
+        cache.put(1, "a");
+        cache.put(1, "b");
+        assertEquals(1, cache.size());
+        assertEquals("b", cache.get(1));
+        cache.invalidate(1);
+        assertNull(cache.get(1));
+        // the slots of replaced and invalidated entries are used again without evicting
+        cache.put(2, "c");
+        cache.put(3, "d");
+        assertEquals(0, cache.getEvictions());
+        assertEquals("c", cache.get(2));
+        assertEquals("d", cache.get(3));
+    }
+
+    @Test
+    public void expiresEntries() throws InterruptedException {
+        LruCache<Integer, String> cache = new LruCache<>(2, 20);
+        cache.put(1, "a");
+        assertEquals("a", cache.get(1));
+        Thread.sleep(40);
+        assertNull(cache.get(1));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        LruCache<Integer, String> cache = new LruCache<>(2, 0);
+        cache.put(1, "a");
+        cache.get(1);
+        cache.get(1);
+        cache.get(2);
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void staysBoundedUnderConcurrentUse() throws InterruptedException {
+        LruCache<Integer, Integer> cache = new LruCache<>(100, 0);
+        AtomicInteger wrongValues = new AtomicInteger();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 100000; i++) {
+                    int key = random.nextInt(500);
+                    Integer value = cache.get(key);
+                    if (value == null) {
+                        cache.put(key, key);
+                    } else if (value != key) {
+                        wrongValues.incrementAndGet();
+                    }
+                    if (i % 100 == 0) {
+                        cache.invalidate(random.nextInt(500));
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, wrongValues.get());
+        assertTrue(cache.size() <= 100);
+        assertEquals(800000, cache.getHits() + cache.getMisses());
+    }
+}
@@ -0,0 +1,144 @@
+package com.server;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class MessageDecoderTest {
+    private static final String MESSAGE = "{\"locationName\":\"Tower\",\"locationDescription\":\"tall\",\"locationCity\":\"Oulu\","
+            + "\"locationCountry\":\"Finland\",\"locationStreetAddress\":\"Street 1\","
+            + "\"originalPostingTime\":\"2023-02-03T10:15:30.123Z\",\"latitude\":65.01,\"longitude\":\"25.47\"}";
+
+    private static byte[] bytes(String body) {
+        return body.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void decodesSingleMessage() {
+        MessageDecoder.Decoded decoded = MessageDecoder.decode(bytes(" " + MESSAGE + "\n"));
+        Message message = decoded.getMessage();
+        assertNull(decoded.getError());
+        assertTrue(decoded.isComplete());
+        assertEquals(8, decoded.getFieldCount());
+        assertNull(decoded.getLocationID());
+        assertFalse(decoded.isWeatherRequested());
+        assertEquals("Tower", message.getLocationName());
+        assertEquals("Oulu", message.getLocationCity());
+        assertEquals("2023-02-03T10:15:30.123Z", message.getOriginalPostingTime());
+        assertEquals(1675419330123L, message.getUnixDate());
+        assertEquals(65.01, message.getLatitude(), 0);
+        assertEquals(25.47, message.getLongitude(), 0);
+    }
+
+    @Test
+    public void countsAndSkipsUnknownFields() {
+        MessageDecoder.Decoded decoded = MessageDecoder.decode(bytes(
+                "{\"locationID\":7,\"weather\":null,\"extra\":{\"a\":[1,{\"b\":true}],\"c\":-1.5e3},\"updatereason\":\"typo\"}"));
+        assertNull(decoded.getError());
+        assertEquals(4, decoded.getFieldCount());
+        assertEquals(Integer.valueOf(7), decoded.getLocationID());
+        assertTrue(decoded.isWeatherRequested());
+        assertEquals("typo", decoded.getMessage().getUpdateReason());
+        assertFalse(decoded.isComplete());
+    }
+
+    @Test
+    public void keepsWrongTypesAsItemErrors() {
+        assertEquals("Incorrect JSON data", MessageDecoder.decode(bytes("{\"locationName\":5}")).getError());
+        assertEquals("Incorrect JSON data", MessageDecoder.decode(bytes("{\"latitude\":\"north\"}")).getError());
+        assertEquals("Incorrect JSON data", MessageDecoder.decode(bytes("{\"locationID\":1.5}")).getError());
+    }
+
+    @Test
+    public void decodesBulkArray() {
+        List<MessageDecoder.Decoded> items = MessageDecoder.decodeArray(bytes("[" + MESSAGE + ", 5, {\"locationID\":2}]"));
+        assertEquals(3, items.size());
+        assertNull(items.get(0).getError());
+        assertEquals("Tower", items.get(0).getMessage().getLocationName());
+        assertEquals("Incorrect JSON data", items.get(1).getError());
+        assertEquals(Integer.valueOf(2), items.get(2).getLocationID());
+        assertTrue(MessageDecoder.decodeArray(bytes(" [ ] ")).isEmpty());
+    }
+
+    @Test
+    public void decodesNDJSON() {
+        List<MessageDecoder.Decoded> items = MessageDecoder.decodeLines(bytes(MESSAGE + "\r\n\n  \n{\"locationID\":3}\nnot json\n"));
+        assertEquals(3, items.size());
+        assertNull(items.get(0).getError());
+        assertTrue(items.get(0).isComplete());
+        assertEquals(Integer.valueOf(3), items.get(1).getLocationID());
+        assertEquals("Incorrect JSON data", items.get(2).getError());
+    }
+
+    @Test
+    public void decodesEscapes() {
+        Message message = MessageDecoder.decode(bytes(
+                "{\"locationName\":\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\\u00e9\",\"locationCity\":\"\\u0041BC\"}")).getMessage();
+        assertEquals("a\"b\\c/d\b\f\n\r\té", message.getLocationName());
+        assertEquals("ABC", message.getLocationCity());
+    }
+
+    @Test
+    public void decodesSurrogatesAndMultiByteCharacters() {
+        Message message = MessageDecoder.decode(bytes(
+                "{\"locationName\":\"\\ud83d\\ude00\",\"locationCity\":\"Äänekoski 😀\\n😀\"}")).getMessage();
+        assertEquals("😀", message.getLocationName());
+        assertEquals("Äänekoski 😀\n😀", message.getLocationCity());
+    }
+
+    @Test
+    public void rejectsTruncatedInput() {
+        String[] bodies = {"", "{", "{\"locationName\"", "{\"locationName\":", "{\"locationName\":\"Tow",
+                "{\"locationName\":\"Tower\"", "{\"locationName\":\"Tower\",", "{\"locationName\":\"\\u00e",
+                "{\"locationName\":\"\\", "{\"extra\":[1,2", "{\"extra\":tru"};
+        for (String body : bodies) {
+            assertThrows(body, IllegalArgumentException.class, () -> MessageDecoder.decode(bytes(body)));
+        }
+        assertThrows(IllegalArgumentException.class, () -> MessageDecoder.decodeArray(bytes("[" + MESSAGE)));
+        assertThrows(IllegalArgumentException.class, () -> MessageDecoder.decodeArray(bytes("[" + MESSAGE + ",")));
+    }
+
+    @Test
+    public void rejectsDataAfterTheBody() {
+        assertThrows(IllegalArgumentException.class, () -> MessageDecoder.decode(bytes(MESSAGE + "}")));
+        assertThrows(IllegalArgumentException.class, () -> MessageDecoder.decodeArray(bytes("[]" + MESSAGE)));
+    }
+
+    @Test
+    public void rejectsDuplicateKeys() {
+        assertThrows(IllegalArgumentException.class,
+                () -> MessageDecoder.decode(bytes("{\"locationName\":\"a\",\"locationName\":\"b\"}")));
+        assertThrows(IllegalArgumentException.class,
+                () -> MessageDecoder.decode(bytes("{\"extra\":1,\"extra\":2}")));
+        assertThrows(IllegalArgumentException.class,
+                () -> MessageDecoder.decode(bytes("{\"extra\":{\"a\":1,\"a\":2}}")));
+        assertThrows(IllegalArgumentException.class,
+                () -> MessageDecoder.decodeArray(bytes("[{\"locationID\":1,\"locationID\":2}]")));
+        List<MessageDecoder.Decoded> items = MessageDecoder.decodeLines(bytes("{\"locationID\":1,\"locationID\":2}\n{\"locationID\":3}"));
+        assertEquals("Incorrect JSON data", items.get(0).getError());
+        assertNull(items.get(1).getError());
+        // the same key in different objects is fine
+        assertEquals(2, MessageDecoder.decode(bytes("{\"a\":{\"b\":1},\"b\":{\"a\":2}}")).getFieldCount());
+    }
+
+    @Test
+    public void keepsBadTimestampsAsItemErrors() {
+        String[] times = {"2023-02-03 10:15:30.123Z", "2023-13-03T10:15:30.123Z", "2023-02-03T10:15:30Z", "yesterday", ""};
+        for (String time : times) {
+            MessageDecoder.Decoded decoded = MessageDecoder.decode(bytes("{\"originalPostingTime\":\"" + time + "\"}"));
+            assertEquals(time, "Incorrect time format", decoded.getError());
+        }
+        assertEquals("Incorrect JSON data", MessageDecoder.decode(bytes("{\"originalPostingTime\":1675419330123}")).getError());
+        List<MessageDecoder.Decoded> items = MessageDecoder.decodeArray(bytes(
+                "[{\"originalPostingTime\":\"soon\"}," + MESSAGE + "]"));
+        assertEquals("Incorrect time format", items.get(0).getError());
+        assertNull(items.get(1).getError());
+    }
+}
@@ -0,0 +1,95 @@
+package com.server;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class MsgServerDatabaseTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private MsgServerDatabase database;
+
+    @BeforeClass
+    public static void flushOnlyWhenAsked() {
+        // the timer must not flush in the middle of a test
+        System.setProperty("visits.flushMillis", "3600000");
+    }
+
+    @Before
+    public void open() {
+        database = new MsgServerDatabase("jdbc:sqlite:", folder.getRoot().getPath() + "/msgDB");
+    }
+
+    @After
+    public void close() throws Exception {
+        database.close();
+    }
+
+    private static Message message(String name) {
+        return new Message(name, "description", "Oulu", "Finland", "Street 1",
+                "2023-02-03T10:15:30.123Z", "poster", null, null, null);
+    }
+
+    private Integer addMessage(String name) {
+        return database.addMessage(message(name));
+    }
+
+    @Test
+    public void visitFlushChangesTheMessagesTag() {
+        Integer id = addMessage("Tower");
+        database.visitLocation(id);
+        String beforeFlush = database.getVersions().messagesTag();
+        assertEquals(Integer.valueOf(2), database.getMessageByID(id).getTimesVisited());
+
+        database.flushVisits();
+        String afterFlush = database.getVersions().messagesTag();
+        assertNotEquals(beforeFlush, afterFlush);
+        assertEquals(Integer.valueOf(2), database.getMessageByID(id).getTimesVisited());
+
+        // nothing pending, nothing written
+        database.flushVisits();
+        assertEquals(afterFlush, database.getVersions().messagesTag());
+    }
+
+    @Test
+    public void leaderboardCountsPendingVisitsAndPromotesOnFlush() {
+        int capacity = database.getTopVisitedCapacity();
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i <= capacity; i++) {
+            messages.add(message("Place " + i));
+        }
+        List<Integer> ids = database.addMessages(messages);
+        Integer listed = ids.get(0);
+        Integer climber = ids.get(capacity);
+
+        // a location on the list shows its pending visits right away
+        for (int i = 0; i < 5; i++) {
+            database.visitLocation(listed);
+        }
+        JSONObject first = database.getTopVisited(1).getJSONObject(0);
+        assertEquals(listed.intValue(), first.getInt("locationID"));
+        assertEquals(6, first.getLong("timesVisited"));
+
+        // one that is not on it gets on it when its visits are flushed
+        for (int i = 0; i < 10; i++) {
+            database.visitLocation(climber);
+        }
+        database.flushVisits();
+        first = database.getTopVisited(1).getJSONObject(0);
+        assertEquals(climber.intValue(), first.getInt("locationID"));
+        assertEquals("Place " + capacity, first.getString("locationName"));
+        assertEquals(11, first.getLong("timesVisited"));
+        assertEquals(listed.intValue(), database.getTopVisited(2).getJSONObject(1).getInt("locationID"));
+        assertEquals(capacity, database.getTopVisited(capacity).length());
+    }
+}
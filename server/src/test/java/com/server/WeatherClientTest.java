@@ -0,0 +1,99 @@
+package com.server;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class WeatherClientTest {
+    private HttpServer upstream;
+    private final AtomicInteger status = new AtomicInteger(200);
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private WeatherClient client;
+
+    @Before
+    public void start() throws IOException {
+        upstream = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        upstream.createContext("/weather", exchange -> {
+            requests.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "<weather><temperature>-3.5</temperature></weather>".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status.get(), body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        upstream.start();
+        URI uri = URI.create("http://localhost:" + upstream.getAddress().getPort() + "/weather");
+        client = new WeatherClient(uri, Duration.ofSeconds(5), 0.01, 100, 60000);
+    }
+
+    @After
+    public void stop() {
+        upstream.stop(0);
+    }
+
+    @Test
+    public void cellCentersHaveTheCellPrecision() {
+        assertEquals(60.12, client.cellCenter(6012), 0);
+        assertEquals(-0.07, client.cellCenter(-7), 0);
+        assertEquals(25.47, client.cellCenter(2547), 0);
+    }
+
+    @Test
+    public void asksForTheCellCenter() throws Exception {
+        release.countDown();
+        assertEquals(-3.5, client.getTemperatureAsync(60.1204, 25.4701).get(), 0);
+        assertEquals(1, requests.size());
+        assertTrue(requests.get(0), requests.get(0).contains("<latitude>60.12</latitude>"));
+        assertTrue(requests.get(0), requests.get(0).contains("<longitude>25.47</longitude>"));
+    }
+
+    @Test
+    public void sharesOneUpstreamCallPerCell() throws Exception {
+        ArrayList<CompletableFuture<Double>> waiting = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            waiting.add(client.getTemperatureAsync(65.01 + i * 0.0001, 25.47));
+        }
+        release.countDown();
+        for (CompletableFuture<Double> temperature : waiting) {
+            assertEquals(-3.5, temperature.get(), 0);
+        }
+        assertEquals(-3.5, client.getTemperatureAsync(65.01, 25.47).get(), 0);
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void doesNotCacheFailures() throws Exception {
+        status.set(500);
+        release.countDown();
+        assertThrows(ExecutionException.class, () -> client.getTemperatureAsync(65.01, 25.47).get());
+        status.set(200);
+        assertEquals(-3.5, client.getTemperatureAsync(65.01, 25.47).get(), 0);
+        assertEquals(2, requests.size());
+    }
+}
@@ -0,0 +1,89 @@
+package com.server;
+
+import com.sun.net.httpserver.HttpServer;
+import org.jooq.exception.DataAccessException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class WeatherEnricherTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private HttpServer upstream;
+    private MsgServerDatabase database;
+    private volatile boolean failWrites;
+    private WeatherEnricher enricher;
+
+    @Before
+    public void start() throws IOException {
+        // the weather service fails for latitude 1.5
+        upstream = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        upstream.createContext("/weather", exchange -> {
+            String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            byte[] body = "<weather><temperature>-3.5</temperature></weather>".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(request.contains("<latitude>1.5</latitude>") ? 500 : 200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        upstream.start();
+        database = new MsgServerDatabase("jdbc:sqlite:", folder.getRoot().getPath() + "/msgDB") {
+            @Override
+            public void updateWeather(Map<Integer, Double> weatherByID) throws DataAccessException {
+                if (failWrites) {
+                    throw new DataAccessException("database is locked");
+                }
+                super.updateWeather(weatherByID);
+            }
+        };
+        URI uri = URI.create("http://localhost:" + upstream.getAddress().getPort() + "/weather");
+        WeatherClient client = new WeatherClient(uri, Duration.ofSeconds(5), 0.01, 100, 60000);
+        enricher = new WeatherEnricher(database, client, 100, 1, 10);
+    }
+
+    @After
+    public void stop() throws Exception {
+        enricher.close();
+        database.close();
+        upstream.stop(0);
+    }
+
+    private void enrichThree() throws InterruptedException {
+        enricher.submit(1, 60.12, 25.47);
+        enricher.submit(2, 1.5, 25.47);
+        enricher.submit(3, 61.12, 25.47);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (enricher.getEnriched() + enricher.getFailed() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // a double count would show up after the batch is done
+        Thread.sleep(100);
+    }
+
+    @Test
+    public void countsEachMessageOnce() throws Exception {
+        enrichThree();
+        assertEquals(2, enricher.getEnriched());
+        assertEquals(1, enricher.getFailed());
+    }
+
+    @Test
+    public void countsFailedWritesOnlyForTheWrittenMessages() throws Exception {
+        failWrites = true;
+        enrichThree();
+        assertEquals(0, enricher.getEnriched());
+        assertEquals(3, enricher.getFailed());
+    }
+}